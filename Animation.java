@@ -0,0 +1,119 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keyframes for rendering a driver file as a sequence of frames.
+ * Driver files turn it on with a frames line and key lines:
+ *
+ *   frames 120
+ *   key 0 eye 85 250 85
+ *   key 119 eye -85 250 85
+ *   key 0 model 0 1.0 0.0 0.0 0 1 0 0 0
+ *   key 119 model 0 1.0 0.0 0.0 360 1 0 0 0
+ *
+ * Camera keys can be eye, look or up. Model keys give the model's index (the order of the
+ * model lines, from 0) and the same numbers as a model line, without the file name.
+ * Values are blended linearly between keys and hold still before the first and after the last,
+ * anything without keys stays where the driver file put it.
+ */
+public class Animation {
+    int frames = 1;
+    private Map<String, TreeMap<Integer, double []>> cameraKeys = new HashMap<String, TreeMap<Integer, double []>>();
+    private Map<Integer, TreeMap<Integer, double []>> modelKeys = new HashMap<Integer, TreeMap<Integer, double []>>();
+
+    /**
+     * Adds a key from the parts of a key line
+     */
+    void addKey (String [] lineItems) {
+        int frame = Integer.parseInt(lineItems[1]);
+        String what = lineItems[2];
+        if (what.equals("model")) {
+            int model = Integer.parseInt(lineItems[3]);
+            double [] values = new double [8];
+            for (int k = 0; k < 8; k++) {
+                values[k] = Double.parseDouble(lineItems[4 + k]);
+            }
+            keysFor(modelKeys, model).put(frame, values);
+        } else if (what.equals("eye") || what.equals("look") || what.equals("up")) {
+            double [] values = {Double.parseDouble(lineItems[3]), Double.parseDouble(lineItems[4]),
+                                Double.parseDouble(lineItems[5])};
+            keysFor(cameraKeys, what).put(frame, values);
+        } else {
+            throw new IllegalArgumentException("Can't animate '" + what + "'");
+        }
+    }
+
+    private static <K> TreeMap<Integer, double []> keysFor (Map<K, TreeMap<Integer, double []>> keys, K what) {
+        TreeMap<Integer, double []> frameKeys = keys.get(what);
+        if (frameKeys == null) {
+            frameKeys = new TreeMap<Integer, double []>();
+            keys.put(what, frameKeys);
+        }
+        return frameKeys;
+    }
+
+    public int getFrameCount () {
+        return frames;
+    }
+
+    /**
+     * Returns whether any model moves, if not the scene only has to be built once
+     */
+    public boolean movesModels () {
+        return !modelKeys.isEmpty();
+    }
+
+    /**
+     * The camera at frame, starting from where base puts it
+     */
+    public Camera cameraAt (int frame, Camera base) {
+        double [] eye = valueAt(cameraKeys.get("eye"), frame,
+                new double [] {base.eyePoint.x, base.eyePoint.y, base.eyePoint.z});
+        double [] look = valueAt(cameraKeys.get("look"), frame,
+                new double [] {base.lookatPoint.x, base.lookatPoint.y, base.lookatPoint.z});
+        double [] up = valueAt(cameraKeys.get("up"), frame,
+                new double [] {base.upVector.x, base.upVector.y, base.upVector.z});
+        double [] bnds = {base.left, base.bottom, base.right, base.top};
+        return new Camera(new Point(eye[0], eye[1], eye[2]), new Point(look[0], look[1], look[2]),
+                          new Vector(up[0], up[1], up[2]), bnds, base.near);
+    }
+
+    /**
+     * Where model number index is placed at frame, starting from base
+     */
+    public Transformation transformationAt (int index, int frame, Transformation base) {
+        TreeMap<Integer, double []> keys = modelKeys.get(index);
+        if (keys == null) {
+            return base;
+        }
+        double [] v = valueAt(keys, frame, new double [] {
+            base.rotation_axis.x, base.rotation_axis.y, base.rotation_axis.z, base.theta, base.scale,
+            base.t_point.x, base.t_point.y, base.t_point.z});
+        return new Transformation(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], base.object_name);
+    }
+
+    /**
+     * Blends the keys on either side of frame, or returns fallback if there are none
+     */
+    private static double [] valueAt (TreeMap<Integer, double []> keys, int frame, double [] fallback) {
+        if (keys == null || keys.isEmpty()) {
+            return fallback;
+        }
+        Map.Entry<Integer, double []> before = keys.floorEntry(frame);
+        Map.Entry<Integer, double []> after = keys.ceilingEntry(frame);
+        if (before == null) {
+            return after.getValue();
+        }
+        if (after == null || after.getKey().equals(before.getKey())) {
+            return before.getValue();
+        }
+        double t = (double) (frame - before.getKey()) / (after.getKey() - before.getKey());
+        double [] a = before.getValue(), b = after.getValue();
+        double [] v = new double [a.length];
+        for (int k = 0; k < a.length; k++) {
+            v[k] = a[k] + t * (b[k] - a[k]);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders every frame of an animated driver file in one go, see Animation for the keyframes.
+ * Models are loaded and given their BVHs once. Each frame only moves the camera and the
+ * instances and refits the scene's BVH around them, it never builds it again.
+ *
+ * Frames are pipelined: there are two copies of the scene, and while frame n renders on one
+ * a background thread gets frame n + 1 ready on the other. Finished frames are written out
+ * on a thread of their own so the next frame doesn't wait on the disk.
+ *
+ * Frame f of out.ppm goes to out_0000.ppm, out_0001.ppm ...
+ */
+public class AnimationRenderer {
+    private TileRenderer renderer;
+    private String outputFname;
+    private boolean binary;
+    private boolean packets;
+    private int lightBudget;
+
+    private DriverModel driver;
+    private Animation animation;
+    private MeshCache cache;
+    private Scene [] buffers = new Scene [2];
+    private RenderStats total = new RenderStats();
+    private int frames;
+    // Frames that made it to disk, only touched by the writer thread until every write is in
+    private int written;
+    // Time spent getting frames ready, only touched by the thread preparing them
+    private long loadNanos, transformNanos, buildNanos;
+
+    public AnimationRenderer (TileRenderer renderer, String outputFname, boolean binary, boolean packets) {
+        this.renderer = renderer;
+        this.outputFname = outputFname;
+        this.binary = binary;
+        this.packets = packets;
+    }
+
+    /**
+     * Shades each hit with at most budget lights, see Scene.setLightBudget
+     */
+    public void setLightBudget (int budget) {
+        this.lightBudget = budget;
+    }
+
+    /**
+     * Renders and writes every frame, returning the stats of all of them added up
+     */
+    public RenderStats render (DriverModel driver) {
+        return render(driver, new MeshCache());
+    }
+
+    /**
+     * Renders every frame, loading models through cache
+     */
+    public RenderStats render (DriverModel driver, MeshCache cache) {
+        this.driver = driver;
+        this.animation = driver.animation;
+        this.cache = cache;
+        this.frames = animation.getFrameCount();
+        this.written = 0;
+        ExecutorService prepare = Executors.newSingleThreadExecutor();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        List<Future<Long>> writes = new ArrayList<Future<Long>>();
+        try {
+            Future<Scene> next = prepare.submit(prepareTask(0));
+            for (int f = 0; f < frames; f++) {
+                Scene scene = next.get();
+                if (f + 1 < frames) {
+                    next = prepare.submit(prepareTask(f + 1));
+                }
+                final Image img = scene.generateImage(driver.resWidth, driver.resHeight, driver.recurDepth, renderer);
+                RenderStats stats = scene.getStats();
+                total.mergeFrame(stats);
+                final String fname = frameName(outputFname, f);
+                System.out.printf("Frame %d/%d rendered in %.1f ms, writing to '%s'...\n",
+                        f + 1, frames, stats.renderNanos / 1e6, fname);
+                writes.add(writer.submit(new Callable<Long>() {
+                    public Long call () {
+                        long start = System.nanoTime();
+                        if (img.writeToFile(fname, binary)) {
+                            written++;
+                        }
+                        return System.nanoTime() - start;
+                    }
+                }));
+            }
+            for (Future<Long> write : writes) {
+                total.writeNanos += write.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Failed to render animation");
+            System.err.println(e);
+        } finally {
+            prepare.shutdown();
+            writer.shutdown();
+        }
+        // Every prepare has finished by now, getting its result made its writes visible
+        total.loadNanos += loadNanos;
+        total.transformNanos += transformNanos;
+        total.buildNanos += buildNanos;
+        return total;
+    }
+
+    /**
+     * Number of frames of the last render that didn't get written, because they failed to render or to write
+     */
+    public int getUnwrittenFrames () {
+        return frames - written;
+    }
+
+    private Callable<Scene> prepareTask (final int frame) {
+        return new Callable<Scene>() {
+            public Scene call () {
+                return prepare(frame);
+            }
+        };
+    }
+
+    /**
+     * Gets the scene for frame ready. Frame n - 1 used the same copy of the scene,
+     * and it's always finished rendering by the time frame n + 1 is prepared.
+     */
+    private Scene prepare (int frame) {
+        int b = frame % buffers.length;
+        Scene scene = buffers[b];
+        if (scene == null) {
+            // The first time round each copy gets built at the driver file's placements
+            scene = Raytracer.buildScene(driver, cache);
+            RenderStats built = scene.getStats();
+            loadNanos += built.loadNanos;
+            transformNanos += built.transformNanos;
+            buildNanos += built.buildNanos;
+            if (packets) {
+                scene.setPacketTracing(true);
+            }
+            scene.setLightBudget(lightBudget);
+            buffers[b] = scene;
+        }
+        scene.setCamera(animation.cameraAt(frame, driver.cameraModel));
+        if (animation.movesModels()) {
+            long start = System.nanoTime();
+            List<Instance> instances = scene.getInstances();
+            for (int i = 0; i < instances.size(); i++) {
+                Transformation t = animation.transformationAt(i, frame, driver.transformations.get(i));
+                instances.get(i).setTransform(
+                        Translator.transformMatrix(t.rotation_axis, t.theta, t.scale, t.t_point));
+            }
+            long moved = System.nanoTime();
+            scene.getBVH().refit();
+            transformNanos += moved - start;
+            buildNanos += System.nanoTime() - moved;
+        }
+        return scene;
+    }
+
+    /**
+     * out.ppm becomes out_0007.ppm for frame 7
+     */
+    static String frameName (String fname, int frame) {
+        int dot = fname.lastIndexOf('.');
+        int slash = fname.lastIndexOf('/');
+        if (dot <= slash + 1) {
+            return String.format("%s_%04d", fname, frame);
+        }
+        return String.format("%s_%04d%s", fname.substring(0, dot), frame, fname.substring(dot));
+    }
+}
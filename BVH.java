@@ -0,0 +1,514 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bounding volume hierarchy over all of the triangles and spheres in a scene.
+ * The tree is built once when the scene is created, and then every ray walks it
+ * instead of testing every single primitive.
+ *
+ * Primitives are referred to by a single integer index:
+ *  - 0 ... mesh.getTriangleCount() - 1 are triangles of the mesh
+ *  - mesh.getTriangleCount() ... are spheres
+ *  - after the spheres come instances, placed copies of a model with a BVH of their own
+ * Once the tree is built the mesh's triangles are reordered to match the leaves,
+ * so the triangles of a leaf sit next to each other in memory.
+ *
+ * The nodes are stored flattened in arrays instead of as node objects:
+ *  - bounds: minX, minY, minZ, maxX, maxY, maxZ for each node
+ *  - nodeInfo: offset, count for each node
+ *      - count == 0 means the node is interior and its children are offset and offset + 1
+ *      - count > 0 means the node is a leaf holding primIndex[offset ... offset + count - 1]
+ */
+public class BVH {
+    // How many primitives we allow in a leaf before splitting
+    private static final int MAX_LEAF_SIZE = 4;
+    // Number of buckets used when estimating the surface area heuristic
+    private static final int SAH_BUCKETS = 12;
+
+    Mesh mesh;
+    List<Sphere> spheres;
+    List<Instance> instances;
+    int faceCount;
+    // Primitives from faceCount up to sphereEnd are spheres, the rest are instances
+    int sphereEnd;
+
+    double [] bounds;
+    int [] nodeInfo;
+    int [] primIndex;
+    private int nodeCount;
+
+    // Per primitive bounds and centroids, only needed while building
+    private double [] primBounds;
+    private double [] centroids;
+
+    public BVH (Mesh mesh, List<Sphere> spheres) {
+        this(mesh, spheres, new ArrayList<Instance>());
+    }
+
+    public BVH (Mesh mesh, List<Sphere> spheres, List<Instance> instances) {
+        this.mesh = mesh;
+        this.spheres = spheres;
+        this.instances = instances;
+        this.faceCount = mesh.getTriangleCount();
+        this.sphereEnd = faceCount + spheres.size();
+        int n = sphereEnd + instances.size();
+        primIndex = new int [n];
+        primBounds = new double [6 * n];
+        centroids = new double [3 * n];
+        for (int i = 0; i < n; i++) {
+            primIndex[i] = i;
+            initPrimBounds(i);
+        }
+        // A binary tree with at most one primitive per leaf has less than 2n nodes
+        int maxNodes = Math.max(1, 2 * n - 1);
+        bounds = new double [6 * maxNodes];
+        nodeInfo = new int [2 * maxNodes];
+        nodeCount = 1;
+        build(0, 0, n);
+        layoutTriangles();
+        // Let go of the build data
+        primBounds = null;
+        centroids = null;
+    }
+
+    /**
+     * Puts back a tree that was already built, e.g. one read out of a SceneSnapshot.
+     * The mesh's triangles have to already be in the order of the leaves.
+     */
+    BVH (Mesh mesh, List<Sphere> spheres, List<Instance> instances,
+         double [] bounds, int [] nodeInfo, int [] primIndex, int nodeCount) {
+        this.mesh = mesh;
+        this.spheres = spheres;
+        this.instances = instances;
+        this.faceCount = mesh.getTriangleCount();
+        this.sphereEnd = faceCount + spheres.size();
+        this.bounds = bounds;
+        this.nodeInfo = nodeInfo;
+        this.primIndex = primIndex;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Recomputes every node's box from the primitives under it without changing the tree.
+     * Much cheaper than building again when things have only moved, like instances between
+     * frames of an animation, though the tree gets less snug the further they move.
+     * Triangles of the mesh are expected to stay put.
+     */
+    public void refit () {
+        int n = primIndex.length;
+        primBounds = new double [6 * n];
+        centroids = new double [3 * n];
+        for (int p = 0; p < n; p++) {
+            initPrimBounds(p);
+        }
+        // Children always come after their parent, so going backwards does children first
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            int b = 6 * node;
+            int offset = nodeInfo[2 * node];
+            int count = nodeInfo[2 * node + 1];
+            emptyBox(bounds, b);
+            if (count > 0) {
+                for (int i = offset; i < offset + count; i++) {
+                    growBox(bounds, b, primBounds, 6 * primIndex[i]);
+                }
+            } else if (nodeCount > 1) {
+                growBox(bounds, b, bounds, 6 * offset);
+                growBox(bounds, b, bounds, 6 * (offset + 1));
+            }
+        }
+        primBounds = null;
+        centroids = null;
+    }
+
+    /**
+     * Fills out the bounding box and centroid for the primitive with index p
+     */
+    private void initPrimBounds (int p) {
+        double minX, minY, minZ, maxX, maxY, maxZ;
+        if (p < faceCount) {
+            double [] pos = mesh.positions;
+            int a = 3 * mesh.indices[3 * p];
+            int b = 3 * mesh.indices[3 * p + 1];
+            int c = 3 * mesh.indices[3 * p + 2];
+            minX = Math.min(pos[a], Math.min(pos[b], pos[c]));
+            minY = Math.min(pos[a + 1], Math.min(pos[b + 1], pos[c + 1]));
+            minZ = Math.min(pos[a + 2], Math.min(pos[b + 2], pos[c + 2]));
+            maxX = Math.max(pos[a], Math.max(pos[b], pos[c]));
+            maxY = Math.max(pos[a + 1], Math.max(pos[b + 1], pos[c + 1]));
+            maxZ = Math.max(pos[a + 2], Math.max(pos[b + 2], pos[c + 2]));
+        } else if (p >= sphereEnd) {
+            double [] box = instances.get(p - sphereEnd).worldBounds;
+            minX = box[0];
+            minY = box[1];
+            minZ = box[2];
+            maxX = box[3];
+            maxY = box[4];
+            maxZ = box[5];
+        } else {
+            Sphere s = spheres.get(p - faceCount);
+            Point c = s.getCenter();
+            double r = Math.abs(s.getRadius());
+            minX = c.x - r;
+            minY = c.y - r;
+            minZ = c.z - r;
+            maxX = c.x + r;
+            maxY = c.y + r;
+            maxZ = c.z + r;
+        }
+        primBounds[6 * p] = minX;
+        primBounds[6 * p + 1] = minY;
+        primBounds[6 * p + 2] = minZ;
+        primBounds[6 * p + 3] = maxX;
+        primBounds[6 * p + 4] = maxY;
+        primBounds[6 * p + 5] = maxZ;
+        centroids[3 * p] = 0.5 * (minX + maxX);
+        centroids[3 * p + 1] = 0.5 * (minY + maxY);
+        centroids[3 * p + 2] = 0.5 * (minZ + maxZ);
+    }
+
+    /**
+     * Builds the subtree for node over primIndex[start ... end - 1]
+     * Splits on the axis with the largest centroid spread, picking the split
+     * with the surface area heuristic.
+     */
+    private void build (int node, int start, int end) {
+        // Bounds of the node, and of the centroids so we know which axis to split
+        double [] cMin = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double [] cMax = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        int b = 6 * node;
+        for (int k = 0; k < 3; k++) {
+            bounds[b + k] = Double.MAX_VALUE;
+            bounds[b + 3 + k] = -Double.MAX_VALUE;
+        }
+        for (int i = start; i < end; i++) {
+            int p = primIndex[i];
+            for (int k = 0; k < 3; k++) {
+                bounds[b + k] = Math.min(bounds[b + k], primBounds[6 * p + k]);
+                bounds[b + 3 + k] = Math.max(bounds[b + 3 + k], primBounds[6 * p + 3 + k]);
+                cMin[k] = Math.min(cMin[k], centroids[3 * p + k]);
+                cMax[k] = Math.max(cMax[k], centroids[3 * p + k]);
+            }
+        }
+        int count = end - start;
+        int axis = 0;
+        for (int k = 1; k < 3; k++) {
+            if (cMax[k] - cMin[k] > cMax[axis] - cMin[axis]) {
+                axis = k;
+            }
+        }
+        double extent = cMax[axis] - cMin[axis];
+        // Small or degenerate sets become leaves
+        if (count <= MAX_LEAF_SIZE || extent <= 0) {
+            makeLeaf(node, start, count);
+            return;
+        }
+        // Drop each primitive into a bucket along the axis and find the cheapest split
+        int [] bucketCount = new int [SAH_BUCKETS];
+        double [] bucketBounds = new double [6 * SAH_BUCKETS];
+        for (int k = 0; k < SAH_BUCKETS; k++) {
+            emptyBox(bucketBounds, 6 * k);
+        }
+        for (int i = start; i < end; i++) {
+            int p = primIndex[i];
+            int k = bucketFor(centroids[3 * p + axis], cMin[axis], extent);
+            bucketCount[k]++;
+            growBox(bucketBounds, 6 * k, primBounds, 6 * p);
+        }
+        double bestCost = Double.MAX_VALUE;
+        int bestSplit = -1;
+        double [] left = new double [6];
+        double [] right = new double [6];
+        for (int split = 1; split < SAH_BUCKETS; split++) {
+            emptyBox(left, 0);
+            emptyBox(right, 0);
+            int leftCount = 0, rightCount = 0;
+            for (int k = 0; k < split; k++) {
+                leftCount += bucketCount[k];
+                growBox(left, 0, bucketBounds, 6 * k);
+            }
+            for (int k = split; k < SAH_BUCKETS; k++) {
+                rightCount += bucketCount[k];
+                growBox(right, 0, bucketBounds, 6 * k);
+            }
+            if (leftCount == 0 || rightCount == 0) {
+                continue;
+            }
+            double cost = leftCount * surfaceArea(left) + rightCount * surfaceArea(right);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = split;
+            }
+        }
+        int mid;
+        if (bestSplit < 0) {
+            // Everything landed in a single bucket, just cut the range in half
+            mid = start + count / 2;
+        } else {
+            // Partition the primitives around the chosen bucket
+            mid = start;
+            for (int i = start; i < end; i++) {
+                int p = primIndex[i];
+                if (bucketFor(centroids[3 * p + axis], cMin[axis], extent) < bestSplit) {
+                    primIndex[i] = primIndex[mid];
+                    primIndex[mid] = p;
+                    mid++;
+                }
+            }
+        }
+        int leftChild = nodeCount;
+        nodeCount += 2;
+        nodeInfo[2 * node] = leftChild;
+        nodeInfo[2 * node + 1] = 0;
+        build(leftChild, start, mid);
+        build(leftChild + 1, mid, end);
+    }
+
+    /**
+     * Reorders the mesh triangles to the order they appear in the leaves and
+     * renumbers primIndex to match
+     */
+    private void layoutTriangles () {
+        int [] order = new int [faceCount];
+        int next = 0;
+        for (int i = 0; i < primIndex.length; i++) {
+            if (primIndex[i] < faceCount) {
+                order[next] = primIndex[i];
+                primIndex[i] = next;
+                next++;
+            }
+        }
+        mesh.reorderTriangles(order);
+    }
+
+    private void makeLeaf (int node, int start, int count) {
+        nodeInfo[2 * node] = start;
+        nodeInfo[2 * node + 1] = count;
+        if (count == 0) {
+            // Only happens for an empty scene, make the box impossible to hit
+            emptyBox(bounds, 6 * node);
+        }
+    }
+
+    private static int bucketFor (double c, double min, double extent) {
+        int k = (int) (SAH_BUCKETS * ((c - min) / extent));
+        return Math.min(k, SAH_BUCKETS - 1);
+    }
+
+    private static void emptyBox (double [] box, int o) {
+        for (int k = 0; k < 3; k++) {
+            box[o + k] = Double.MAX_VALUE;
+            box[o + 3 + k] = -Double.MAX_VALUE;
+        }
+    }
+
+    private static void growBox (double [] box, int o, double [] other, int p) {
+        for (int k = 0; k < 3; k++) {
+            box[o + k] = Math.min(box[o + k], other[p + k]);
+            box[o + 3 + k] = Math.max(box[o + 3 + k], other[p + 3 + k]);
+        }
+    }
+
+    private static double surfaceArea (double [] box) {
+        double dx = box[3] - box[0];
+        double dy = box[4] - box[1];
+        double dz = box[5] - box[2];
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /**
+     * Walks the tree and tests the ray against every primitive whose boxes it passes through.
+     * The closest hit is recorded on the ray, exactly like the linear scan in Ray.rayTest does.
+     * Returns true if anything was hit.
+     */
+    public boolean closestHit (Ray ray) {
+        return closestHit(ray, 0);
+    }
+
+    /**
+     * Same as closestHit, but only walks the subtree under root
+     */
+    boolean closestHit (Ray ray, int root) {
+        if (isEmpty()) {
+            // The root of an empty tree is a leaf with nothing in it, not a node with children
+            return ray.hasHit();
+        }
+        double ox = ray.ox, oy = ray.oy, oz = ray.oz;
+        double dx = ray.dx, dy = ray.dy, dz = ray.dz;
+        double invX = 1 / dx;
+        double invY = 1 / dy;
+        double invZ = 1 / dz;
+        int [] stack = ray.stack;
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!hitsBox(node, ox, oy, oz, invX, invY, invZ, ray.getClosestDist())) {
+                continue;
+            }
+            int offset = nodeInfo[2 * node];
+            int count = nodeInfo[2 * node + 1];
+            if (count > 0) {
+                for (int i = offset; i < offset + count; i++) {
+                    int p = primIndex[i];
+                    if (p < faceCount) {
+                        ray.intersectTriangle(mesh, p);
+                    } else if (p < sphereEnd) {
+                        ray.intersectSphere(spheres.get(p - faceCount));
+                    } else {
+                        ray.intersectInstance(instances.get(p - sphereEnd));
+                    }
+                }
+            } else {
+                // Visit the nearer child first so we can cull the far one with a closer hit
+                int near = offset, far = offset + 1;
+                if (centerAlong(offset + 1, dx, dy, dz) < centerAlong(offset, dx, dy, dz)) {
+                    near = offset + 1;
+                    far = offset;
+                }
+                if (top + 2 > stack.length) {
+                    stack = ray.stack = Arrays.copyOf(stack, 2 * stack.length);
+                }
+                stack[top++] = far;
+                stack[top++] = near;
+            }
+        }
+        return ray.hasHit();
+    }
+
+    /**
+     * Returns true if anything blocks the straight line between origin and target.
+     * Used for shadows, where it doesn't matter which object is in the way.
+     */
+    public boolean isOccluded (Point origin, Point target) {
+        Ray ray = new Ray();
+        double maxDist = ray.setBetween(origin, target);
+        return isOccluded(ray, maxDist);
+    }
+
+    /**
+     * Returns true as soon as any primitive is hit along the ray closer than maxDist.
+     * Unlike closestHit the ray's closest hit is left alone and traversal stops at the first blocker.
+     */
+    public boolean isOccluded (Ray ray, double maxDist) {
+        return findOccluder(ray, maxDist) >= 0;
+    }
+
+    /**
+     * Same as isOccluded, but returns the primitive in the way (for blocks) or -1 if there isn't one
+     */
+    public int findOccluder (Ray ray, double maxDist) {
+        if (isEmpty()) {
+            return -1;
+        }
+        double ox = ray.ox, oy = ray.oy, oz = ray.oz;
+        double invX = 1 / ray.dx;
+        double invY = 1 / ray.dy;
+        double invZ = 1 / ray.dz;
+        int [] stack = ray.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!hitsBox(node, ox, oy, oz, invX, invY, invZ, maxDist)) {
+                continue;
+            }
+            int offset = nodeInfo[2 * node];
+            int count = nodeInfo[2 * node + 1];
+            if (count > 0) {
+                for (int i = offset; i < offset + count; i++) {
+                    int p = primIndex[i];
+                    double t;
+                    if (p < faceCount) {
+                        t = ray.intersectTriangle(mesh, p);
+                    } else if (p < sphereEnd) {
+                        t = ray.intersectSphere(spheres.get(p - faceCount));
+                    } else if (ray.instanceBlocks(instances.get(p - sphereEnd), maxDist)) {
+                        return p;
+                    } else {
+                        continue;
+                    }
+                    if (t > 0.0001 && t < maxDist) {
+                        return p;
+                    }
+                }
+            } else {
+                // Order doesn't matter here, any hit will do
+                if (top + 2 > stack.length) {
+                    stack = ray.stack = Arrays.copyOf(stack, 2 * stack.length);
+                }
+                stack[top++] = offset + 1;
+                stack[top++] = offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether primitive p (from findOccluder) is on the ray closer than maxDist,
+     * the same test isOccluded does on it
+     */
+    public boolean blocks (Ray ray, int p, double maxDist) {
+        double t;
+        if (p < faceCount) {
+            t = ray.intersectTriangle(mesh, p);
+        } else if (p < sphereEnd) {
+            t = ray.intersectSphere(spheres.get(p - faceCount));
+        } else {
+            return ray.instanceBlocks(instances.get(p - sphereEnd), maxDist);
+        }
+        return t > 0.0001 && t < maxDist;
+    }
+
+    /**
+     * Projection of the center of a node's box onto the direction d
+     */
+    private double centerAlong (int node, double dx, double dy, double dz) {
+        int b = 6 * node;
+        return (bounds[b] + bounds[b + 3]) * dx
+             + (bounds[b + 1] + bounds[b + 4]) * dy
+             + (bounds[b + 2] + bounds[b + 5]) * dz;
+    }
+
+    /**
+     * Slab test between the ray and the box of node, only counting hits closer than maxT
+     * The comparisons are written so a NaN (ray parallel to and on a slab) never rejects the box.
+     */
+    private boolean hitsBox (int node, double ox, double oy, double oz,
+            double invX, double invY, double invZ, double maxT) {
+        int b = 6 * node;
+        double tMin = 0;
+        double tMax = maxT;
+        double t0 = (bounds[b] - ox) * invX;
+        double t1 = (bounds[b + 3] - ox) * invX;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        t0 = (bounds[b + 1] - oy) * invY;
+        t1 = (bounds[b + 4] - oy) * invY;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        t0 = (bounds[b + 2] - oz) * invZ;
+        t1 = (bounds[b + 5] - oz) * invZ;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        return tMin <= tMax;
+    }
+
+    /**
+     * True for a scene or model with nothing in it, e.g. an obj file that was missing
+     */
+    public boolean isEmpty () {
+        return primIndex.length == 0;
+    }
+
+    public int getNodeCount () {
+        return nodeCount;
+    }
+
+    /**
+     * Rough number of bytes held by the tree and its mesh
+     */
+    public long getByteSize () {
+        return 8L * bounds.length + 4L * nodeInfo.length + 4L * primIndex.length + mesh.getByteSize();
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Renders a whole list of driver files (or snapshots) in one run.
+ * Models are loaded once through a MeshCache shared by every job, and frames overlap:
+ * while a few frames render, the next one is loaded and built, and the tiles of all of the
+ * frames in flight share the render threads, so the cores stay busy across small frames.
+ */
+public class BatchRenderer {
+    /**
+     * One driver file and where its image goes
+     */
+    public static class Job {
+        String input, output;
+
+        public Job (String input, String output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * A frame that's been started on the render threads
+     */
+    private static class Frame {
+        Job job;
+        Scene scene;
+        Image img;
+        ForkJoinTask<Void> task;
+        long start;
+    }
+
+    private TileRenderer renderer;
+    private boolean binary;
+    private boolean packets;
+    private boolean flatten;
+    private boolean mapped;
+    private int lightBudget;
+    // Most frames rendering at once
+    private int window;
+    private MeshCache cache = new MeshCache();
+    private RenderStats total = new RenderStats();
+    private int frames, failed;
+
+    public BatchRenderer (TileRenderer renderer, boolean binary, boolean packets) {
+        this.renderer = renderer;
+        this.binary = binary;
+        this.packets = packets;
+        this.window = Math.max(2, renderer.getThreads());
+    }
+
+    /**
+     * Copies every placement's triangles into one mesh, like --flatten, for driver files that aren't animated
+     */
+    public void setFlatten (boolean flatten) {
+        this.flatten = flatten;
+    }
+
+    /**
+     * Renders each frame straight into its output file, like --mapped (binary output only)
+     */
+    public void setMapped (boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Shades each hit with at most budget lights, see Scene.setLightBudget
+     */
+    public void setLightBudget (int budget) {
+        this.lightBudget = budget;
+    }
+
+    /**
+     * Turns each argument into jobs. An argument can be a driver file or snapshot, or a pattern
+     * like drivers_models/driver*.txt. Images go into outDir named after the driver file.
+     */
+    public static List<Job> jobsFor (List<String> args, String outDir) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        for (String arg : args) {
+            for (String input : expand(arg)) {
+                String name = new File(input).getName();
+                int dot = name.lastIndexOf('.');
+                if (dot > 0) {
+                    name = name.substring(0, dot);
+                }
+                jobs.add(new Job(input, new File(outDir, name + ".ppm").getPath()));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Reads jobs from a file with a driver file and output file on each line
+     */
+    public static List<Job> jobsFromList (String listFname) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        for (String line : Files.readAllLines(Paths.get(listFname))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String [] parts = line.split("\\s+");
+            if (parts.length != 2) {
+                throw new IOException("Expected 'driver output' in " + listFname + ": " + line);
+            }
+            jobs.add(new Job(parts[0], parts[1]));
+        }
+        return jobs;
+    }
+
+    /**
+     * The files matching a * or ? pattern in the last part of the path, in name order
+     */
+    private static List<String> expand (String arg) throws IOException {
+        List<String> files = new ArrayList<String>();
+        Path path = Paths.get(arg);
+        String pattern = path.getFileName().toString();
+        if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+            files.add(arg);
+            return files;
+        }
+        Path dir = path.getParent() == null ? Paths.get(".") : path.getParent();
+        try (DirectoryStream<Path> matches = Files.newDirectoryStream(dir, pattern)) {
+            for (Path match : matches) {
+                files.add(path.getParent() == null ? match.getFileName().toString() : match.toString());
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Renders and writes every job, returning all of their stats added up
+     */
+    public RenderStats render (List<Job> jobs) {
+        long start = System.nanoTime();
+        ArrayDeque<Frame> inFlight = new ArrayDeque<Frame>();
+        for (Job job : jobs) {
+            Frame frame = startFrame(job);
+            if (frame == null) {
+                continue;
+            }
+            inFlight.add(frame);
+            while (inFlight.size() >= window) {
+                finishFrame(inFlight.poll());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            finishFrame(inFlight.poll());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d frames in %.2f s (%d failed): %.2f frames/s, %.0f rays/s\n",
+                frames, seconds, failed, frames / seconds, total.getTotalRays() / seconds);
+        return total;
+    }
+
+    /**
+     * Loads the job's scene and sets its tiles going, or renders it straight away if it's an animation.
+     * Returns null if there's nothing left to wait on.
+     */
+    private Frame startFrame (Job job) {
+        System.out.printf("Rendering '%s' to '%s'...\n", job.input, job.output);
+        try {
+            DriverModel driver;
+            Scene scene;
+            if (SceneSnapshot.isSnapshot(job.input)) {
+                SceneSnapshot snapshot = SceneSnapshot.open(job.input);
+                driver = snapshot.getDriver();
+                scene = snapshot.getScene();
+            } else {
+                long start = System.nanoTime();
+                driver = new DriverModel(job.input);
+                long driverTime = System.nanoTime() - start;
+                if (driver.cameraModel == null) {
+                    throw new IOException("'" + job.input + "' isn't a valid driver file");
+                }
+                if (driver.animation != null && driver.animation.getFrameCount() > 1) {
+                    AnimationRenderer animation = new AnimationRenderer(renderer, job.output, binary, packets);
+                    animation.setLightBudget(lightBudget);
+                    RenderStats stats = animation.render(driver, cache);
+                    stats.loadNanos += driverTime;
+                    total.merge(stats);
+                    frames += driver.animation.getFrameCount() - animation.getUnwrittenFrames();
+                    if (animation.getUnwrittenFrames() > 0) {
+                        failed++;
+                    }
+                    return null;
+                }
+                scene = flatten ? Raytracer.buildScene(driver, true) : Raytracer.buildScene(driver, cache);
+                scene.getStats().loadNanos += driverTime;
+            }
+            if (packets) {
+                scene.setPacketTracing(true);
+            }
+            scene.setLightBudget(lightBudget);
+            Frame frame = new Frame();
+            frame.job = job;
+            frame.scene = scene;
+            frame.img = Raytracer.newImage(driver, job.output, mapped);
+            frame.start = scene.startFrame();
+            frame.task = renderer.start(scene, frame.img, driver.resWidth, driver.resHeight, driver.recurDepth);
+            return frame;
+        } catch (Exception e) {
+            System.err.printf("Failed to render '%s'\n", job.input);
+            System.err.println(e);
+            failed++;
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the frame's tiles and writes its image
+     */
+    private void finishFrame (Frame frame) {
+        try {
+            frame.task.join();
+        } catch (RuntimeException e) {
+            System.err.printf("Failed to render '%s'\n", frame.job.input);
+            System.err.println(e);
+            failed++;
+            return;
+        }
+        frame.scene.endFrame(frame.start);
+        long start = System.nanoTime();
+        if (!frame.img.writeToFile(frame.job.output, binary)) {
+            failed++;
+            return;
+        }
+        RenderStats stats = frame.scene.getStats();
+        stats.writeNanos += System.nanoTime() - start;
+        total.merge(stats);
+        frames++;
+    }
+}
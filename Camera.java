@@ -29,6 +29,7 @@ public class Camera {
     public double near;
     // The horizontal and vertical vectors
     public Vector Uv, Vv;
+    private Vector nearOffset;
     // Bnd contains integer values denoting the bounded image plane
     // In this order: left, bottom, right, top
     public Camera (Point e, Point l, Vector up, double [] bnd, double near) {
@@ -49,8 +50,25 @@ public class Camera {
         top = bnd[3];
         Uv = up.crossProduct(viewPlaneNormal);
         Vv = viewPlaneNormal.crossProduct(Uv);
-        Uv.direction = Uv.normalized;
-        Vv.direction = Vv.normalized;
+        Uv.makeUnitLength();
+        Vv.makeUnitLength();
+        // near * Wv, which is the same for every pixel
+        nearOffset = viewPlaneNormal.scale(this.near);
+    }
+
+    /**
+     * Points ray from the eye point through pixel i, j of a width x height image plane
+     */
+    public Ray castRay (double i, double j, double width, double height, Ray ray) {
+        // Get the pixel value i,j on the image plane in world coordinates
+        double y = (i / (width - 1)) * (left - right) + right;
+        double x = (j / (height - 1)) * (top - bottom) + bottom;
+        // Pixelpt = Eye + near * Wv (viewplaneNormal) + x * Uv + y * Vv
+        double px = eyePoint.x + nearOffset.x + Uv.x * x + Vv.x * y;
+        double py = eyePoint.y + nearOffset.y + Uv.y * x + Vv.y * y;
+        double pz = eyePoint.z + nearOffset.z + Uv.z * x + Vv.z * y;
+        // A ray is a point and direction
+        return ray.set(px, py, pz, px - eyePoint.x, py - eyePoint.y, pz - eyePoint.z);
     }
 
     public String toString() {
@@ -0,0 +1,193 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps track of which tiles of a render are finished and saves them, along with the pixels
+ * rendered so far, to output.ppm.ckpt every so often. If the render dies, running it again with
+ * --resume loads the checkpoint and only renders the tiles that were missing.
+ *
+ * A checkpoint is only used if it was made from a driver file (or snapshot) with the same
+ * SHA-256 and at the same resolution, depth and tile size, otherwise the render starts over.
+ *
+ * The file is MAGIC, VERSION, the hash, width, height, depth, tile size, tile count,
+ * the finished tiles as a bit set of longs, then r, g, b bytes for every pixel in image order.
+ */
+public class Checkpoint implements TileRenderer.TileListener {
+    private static final int MAGIC = 0x5254434B; // "RTCK"
+    private static final int VERSION = 1;
+
+    private String fname;
+    private byte [] hash;
+    private int width, height, depth, tileSize;
+    private Tile [] tiles;
+    private BitSet finished;
+
+    /**
+     * A checkpoint for rendering input into outputFname, cut into the tiles TileRenderer uses
+     */
+    public Checkpoint (String input, String outputFname, int width, int height, int depth, int tileSize)
+            throws IOException {
+        this.fname = outputFname + ".ckpt";
+        this.hash = sha256(input);
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.tileSize = tileSize;
+        this.tiles = Tile.split(width, height, tileSize);
+        this.finished = new BitSet(tiles.length);
+    }
+
+    /**
+     * Loads the finished tiles of an earlier run into img, returning how many there were.
+     * Returns 0 if there's no checkpoint or it doesn't belong to this render.
+     */
+    public int resume (Image img) {
+        File f = new File(fname);
+        if (!f.isFile()) {
+            System.out.printf("No checkpoint at '%s', starting from the beginning\n", fname);
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.printf("'%s' isn't a checkpoint, starting from the beginning\n", fname);
+                return 0;
+            }
+            byte [] saved = new byte [hash.length];
+            in.readFully(saved);
+            if (!Arrays.equals(saved, hash)) {
+                System.out.println("The driver file has changed since the checkpoint, starting from the beginning");
+                return 0;
+            }
+            if (in.readInt() != width || in.readInt() != height || in.readInt() != depth
+                    || in.readInt() != tileSize || in.readInt() != tiles.length) {
+                System.out.println("The checkpoint is for different render settings, starting from the beginning");
+                return 0;
+            }
+            long [] words = new long [(tiles.length + 63) / 64];
+            for (int w = 0; w < words.length; w++) {
+                words[w] = in.readLong();
+            }
+            BitSet done = BitSet.valueOf(words);
+            byte [] row = new byte [3 * img.width];
+            for (int i = 0; i < img.height; i++) {
+                in.readFully(row);
+                for (int j = 0, k = 0; j < img.width; j++, k += 3) {
+                    img.setPixel(i, j, row[k] & 0xFF, row[k + 1] & 0xFF, row[k + 2] & 0xFF);
+                }
+            }
+            synchronized (this) {
+                finished = done;
+            }
+            return done.cardinality();
+        } catch (IOException e) {
+            System.err.printf("Couldn't read checkpoint '%s', starting from the beginning\n", fname);
+            System.err.println(e);
+            return 0;
+        }
+    }
+
+    public Tile [] getTiles () {
+        return tiles;
+    }
+
+    public synchronized boolean isFinished (Tile tile) {
+        return finished.get(tile.index);
+    }
+
+    /**
+     * Called once every pixel of tile is in the image
+     */
+    public synchronized void finish (Tile tile) {
+        finished.set(tile.index);
+    }
+
+    /**
+     * Writes the finished tiles and img out, next to the checkpoint first and then moved
+     * into place so a crash while saving leaves the last checkpoint as it was.
+     * Tiles still rendering can be writing to img, but they aren't marked finished yet
+     * so whatever gets saved of them is ignored on resume.
+     */
+    public void save (Image img) {
+        BitSet done;
+        synchronized (this) {
+            done = (BitSet) finished.clone();
+        }
+        Path target = Paths.get(fname);
+        Path part = Paths.get(fname + ".part");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(part.toFile()), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(hash);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(depth);
+                out.writeInt(tileSize);
+                out.writeInt(tiles.length);
+                long [] words = Arrays.copyOf(done.toLongArray(), (tiles.length + 63) / 64);
+                for (long w : words) {
+                    out.writeLong(w);
+                }
+                byte [] row = new byte [3 * img.width];
+                for (int i = 0; i < img.height; i++) {
+                    for (int j = 0, k = 0; j < img.width; j++, k += 3) {
+                        int p = img.getPackedPixel(i, j);
+                        row[k] = (byte) (p >> 16);
+                        row[k + 1] = (byte) (p >> 8);
+                        row[k + 2] = (byte) p;
+                    }
+                    out.write(row);
+                }
+            }
+            try {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            System.out.printf("Checkpointed %d of %d tiles to '%s'\n", done.cardinality(), tiles.length, fname);
+        } catch (IOException e) {
+            System.err.println("Failed to write checkpoint");
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Removes the checkpoint once the image it was for has been written
+     */
+    public void delete () {
+        new File(fname).delete();
+    }
+
+    private static byte [] sha256 (String filename) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte [] buffer = new byte [1 << 16];
+        try (InputStream in = new FileInputStream(filename)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -11,6 +11,11 @@ public class DriverModel {
     List<Light> lights;
     Camera cameraModel;
     int resWidth, resHeight, recurDepth = 0;
+    // Adaptive antialiasing, off unless the driver has an antialias line
+    int aaDepth = 0;
+    double aaThreshold = 0.1;
+    // Keyframes, null unless the driver has frames or key lines
+    Animation animation;
 
     private static class InvalidModelException extends Exception {
 		private static final long serialVersionUID = 1L;
@@ -19,6 +24,15 @@ public class DriverModel {
         }
     }
 
+    /**
+     * An empty driver to be filled out by hand, SceneSnapshot uses this
+     */
+    DriverModel () {
+        transformations = new ArrayList<Transformation>();
+        spheres = new ArrayList<Sphere>();
+        lights = new ArrayList<Light>();
+    }
+
     public DriverModel (String fname) {
         transformations = new ArrayList<Transformation>();
         spheres = new ArrayList<Sphere>();
@@ -44,9 +58,13 @@ public class DriverModel {
 
         // For creating points
         double x, y, z;
+        // Model index and line number of each model key, checked once every model line is in
+        List<int []> modelKeys = new ArrayList<int []>();
+        int lineNumber = 0;
 
         while(fileReader.hasNext()) {
             String line = fileReader.nextLine();
+            lineNumber++;
             // Lines starting # are comments
             if (!line.startsWith("#")) {
                 // Split line into space delimited arraylist
@@ -123,16 +141,43 @@ public class DriverModel {
                     lights.add(l);
                 } else if (lineItems[0].equalsIgnoreCase("recursionLevel")) {
                     recurDepth = Integer.parseInt(lineItems[1]);
+                } else if (lineItems[0].equals("frames")) {
+                    animation().frames = Integer.parseInt(lineItems[1]);
+                } else if (lineItems[0].equals("key")) {
+                    // key <frame> eye|look|up x y z, or key <frame> model <index> <model line numbers>
+                    animation().addKey(lineItems);
+                    if (lineItems[2].equals("model")) {
+                        modelKeys.add(new int [] {Integer.parseInt(lineItems[3]), lineNumber});
+                    }
+                } else if (lineItems[0].equals("antialias")) {
+                    // antialias <max subdivisions> [threshold]
+                    aaDepth = Integer.parseInt(lineItems[1]);
+                    if (lineItems.length > 2) {
+                        aaThreshold = Double.parseDouble(lineItems[2]);
+                    }
                 } else {
                     throw new InvalidModelException("Unable to recognize phrase '" + lineItems[0] + "'");
                 }
             }
         }
         fileReader.close();
+        for (int [] key : modelKeys) {
+            if (key[0] < 0 || key[0] >= transformations.size()) {
+                throw new InvalidModelException(String.format("Line %d: key for model %d, but there are %d model lines (numbered from 0)",
+                        key[1], key[0], transformations.size()));
+            }
+        }
         double [] bnds = {left, bottom, right, top};
         cameraModel = new Camera (eye, lookat, upVector, bnds, near);
     }
 
+    private Animation animation () {
+        if (animation == null) {
+            animation = new Animation();
+        }
+        return animation;
+    }
+
     private Transformation transformationFromLineItems (String [] lineItems) {
         // Read in model file
         double wX = Double.parseDouble(lineItems[1]);
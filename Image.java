@@ -1,37 +1,32 @@
-import java.io.PrintWriter;
-import java.util.Arrays;
-import java.io.File;
-import org.ejml.simple.SimpleMatrix;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Image {
-    /**
-     * Just an abstraction for an rgb triple
-     */
-    class Pixel {
-        int r, g, b;
-        Pixel (int r, int g, int b) {
-            this.r = r;
-            this.b = b;
-            this.g = g;
-        }
-
-        public int [] pixelAsArray () {
-            int [] a = {this.r, this.g, this.b};
-            return a;
-        }
-
-        public String toString () {
-            return r + " " + g + " " + b;
-        }
-    }
+    // Size of the buffer that gets filled up and handed to the file channel
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
 
-    // An image is a 2d array of pixels
-    private Pixel [][] pixels;
+    // An image is a packed array of pixels, 0xRRGGBB in row order
+    private int [] pixels;
     public int width, height;
     // Init an image with a given resolution
     public Image (int width, int height) {
         this.width = width;
         this.height = height;
+        this.pixels = new int [width * height];
+    }
+
+    /**
+     * For images that keep their pixels somewhere else, they have to override
+     * setPixel(i, j, r, g, b) and getPackedPixel
+     */
+    protected Image (int width, int height, boolean inMemory) {
+        this.width = width;
+        this.height = height;
+        this.pixels = inMemory ? new int [width * height] : null;
     }
 
     /**
@@ -42,7 +37,7 @@ public class Image {
         // Yeah you have to reset these i don't even care anymore
         this.width = pValues[0].length;
         this.height = pValues.length;
-        pixels = new Pixel[height][width];
+        pixels = new int [width * height];
         for (int i = 0; i < pValues.length; i++) {
             for (int j = 0; j < pValues[0].length; j++) {
                 this.setPixel(i, j, pValues[i][j]);
@@ -66,45 +61,118 @@ public class Image {
                 temp[k][j] = m[i][j];
         return temp;
     }
-    
+
+    /**
+     * Writes this image to an output file of a given name as binary PPM (P6)
+     */
+    public boolean writeToFile (String filename) {
+        return writeToFile(filename, true);
+    }
+
     /**
      * Writes this image to an output file of a given name.
-     * Format is ACSII PPM:
+     * Format is binary PPM (P6) if binary is set, otherwise ASCII PPM (P3):
      * https://en.wikipedia.org/wiki/Netpbm_format#PPM_example
+     * Returns whether the whole image made it into the file.
      */
-    public void writeToFile (String filename) {
-        try {        
-            PrintWriter outFile = new PrintWriter (new File(filename));
+    public boolean writeToFile (String filename, boolean binary) {
+        try (FileChannel out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
             /**
              * The header looks like this:
              * P3
              * <width> <height> <max pixel value>
              */
-            outFile.println("P3");
-            outFile.printf("%d %d %d\n", this.width, this.height, 255);
-            // Lazy way of avoiding the fact that everything is rotated right is to rotate it left
-            // Output each pixel
-            // for (int i = this.height - 1; i >= 0; i--) {
-            for (int i = 0; i < this.height; i++) {
-                for (int j = 0; j < this.width; j++) {
-                    outFile.print(this.pixels[i][j].toString() + " ");
-                }
-                // Print a new line after width number of pixels
-                outFile.println();
+            String header = String.format("%s\n%d %d %d\n", binary ? "P6" : "P3", this.width, this.height, 255);
+            buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+            if (binary) {
+                writeBinary(out, buffer);
+            } else {
+                writeAscii(out, buffer);
             }
-            outFile.close();
+            flush(out, buffer);
         } catch (Exception e) {
             System.err.println("Failed to output image file");
             System.err.println(e);
-            return;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * P6 body, three bytes per pixel in row order
+     */
+    private void writeBinary (FileChannel out, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < this.height; i++) {
+            for (int j = 0; j < this.width; j++) {
+                if (buffer.remaining() < 3) {
+                    flush(out, buffer);
+                }
+                int p = getPackedPixel(i, j);
+                buffer.put((byte) (p >> 16));
+                buffer.put((byte) (p >> 8));
+                buffer.put((byte) p);
+            }
+        }
+    }
+
+    /**
+     * P3 body, "r g b " for each pixel and a new line after width number of pixels
+     */
+    private void writeAscii (FileChannel out, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < this.height; i++) {
+            for (int j = 0; j < this.width; j++) {
+                // Longest pixel is "255 255 255 "
+                if (buffer.remaining() < 12) {
+                    flush(out, buffer);
+                }
+                int p = getPackedPixel(i, j);
+                putAscii(buffer, (p >> 16) & 0xFF);
+                putAscii(buffer, (p >> 8) & 0xFF);
+                putAscii(buffer, p & 0xFF);
+            }
+            if (buffer.remaining() < 1) {
+                flush(out, buffer);
+            }
+            buffer.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Puts the decimal digits of a value from 0 to 255 followed by a space
+     */
+    private static void putAscii (ByteBuffer buffer, int v) {
+        if (v >= 100) {
+            buffer.put((byte) ('0' + v / 100));
         }
+        if (v >= 10) {
+            buffer.put((byte) ('0' + (v / 10) % 10));
+        }
+        buffer.put((byte) ('0' + v % 10));
+        buffer.put((byte) ' ');
+    }
+
+    private static void flush (FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
     }
 
     /**
      * Sets a pixel at the specified index
      */
     public void setPixel(int i, int j, int[] pixel) {
-        pixels[i][j] = new Pixel(pixel[0], pixel[1], pixel[2]);
+        setPixel(i, j, pixel[0], pixel[1], pixel[2]);
+    }
+
+    /**
+     * Sets a pixel at the specified index, the values are from 0 to 255
+     */
+    public void setPixel(int i, int j, int r, int g, int b) {
+        pixels[i * width + j] = (r << 16) | (g << 8) | b;
     }
 
     /**
@@ -114,13 +182,49 @@ public class Image {
         int r = (int) Math.round(Math.min(255, Math.max(0, pixel.red * 255)));
         int g = (int) Math.round(Math.min(255, Math.max(0, pixel.green * 255)));
         int b = (int) Math.round(Math.min(255, Math.max(0, pixel.blue * 255)));
-        pixels[i][j] = new Pixel(r, g, b);
+        setPixel(i, j, r, g, b);
     }
 
     /**
      * Retrieves a pixel from the array
      */
     public int [] getPixel (int i, int j) {
-        return pixels[i][j].pixelAsArray();
+        int p = getPackedPixel(i, j);
+        int [] a = {(p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF};
+        return a;
+    }
+
+    /**
+     * Returns a copy of this image where every step x step block takes the color of its top left pixel.
+     * Used for the previews of a progressive render, where only those pixels have been rendered so far.
+     */
+    public Image blockFill (int step) {
+        Image copy = new Image(width, height);
+        for (int i = 0; i < height; i++) {
+            int top = i - i % step;
+            for (int j = 0; j < width; j++) {
+                copy.pixels[i * width + j] = getPackedPixel(top, j - j % step);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Fills just the pixels of tile in copy the way blockFill does, for previews part way through a pass
+     */
+    public void blockFill (int step, Tile tile, Image copy) {
+        for (int i = tile.iStart; i < tile.iEnd; i++) {
+            int top = i - i % step;
+            for (int j = tile.jStart; j < tile.jEnd; j++) {
+                copy.pixels[i * width + j] = getPackedPixel(top, j - j % step);
+            }
+        }
+    }
+
+    /**
+     * Retrieves a pixel packed as 0xRRGGBB
+     */
+    public int getPackedPixel (int i, int j) {
+        return pixels[i * width + j];
     }
-}
\ No newline at end of file
+}
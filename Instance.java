@@ -0,0 +1,106 @@
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * One placement of a model in the scene.
+ * The model's mesh and BVH stay in object space and are shared by every placement of it,
+ * an instance only holds where this copy goes: the object to world transform, its inverse,
+ * and its box in the world so the scene's BVH can hold instances like any other primitive.
+ *
+ * Rays are moved into object space to be tested against the model, so placing a model
+ * 500 times costs 500 of these instead of 500 copies of its triangles.
+ * The matrices are the top 3 rows of the 4 x 4 homogenous transform, row by row.
+ */
+public class Instance {
+    BVH bvh;
+    double [] toWorld = new double [12];
+    double [] toObject = new double [12];
+    // minX, minY, minZ, maxX, maxY, maxZ in world space
+    double [] worldBounds = new double [6];
+
+    public Instance (BVH bvh, SimpleMatrix transform) {
+        this.bvh = bvh;
+        setTransform(transform);
+    }
+
+    /**
+     * Moves the instance, the BVH holding it has to be refit afterwards
+     */
+    public void setTransform (SimpleMatrix transform) {
+        SimpleMatrix inverse = transform.invert();
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 4; c++) {
+                toWorld[4 * r + c] = transform.get(r, c);
+                toObject[4 * r + c] = inverse.get(r, c);
+            }
+        }
+        initWorldBounds();
+    }
+
+    /**
+     * Puts back an instance whose transforms and box were already worked out, e.g. by a SceneSnapshot
+     */
+    Instance (BVH bvh, double [] toWorld, double [] toObject, double [] worldBounds) {
+        this.bvh = bvh;
+        this.toWorld = toWorld;
+        this.toObject = toObject;
+        this.worldBounds = worldBounds;
+    }
+
+    public Mesh getMesh () {
+        return bvh.mesh;
+    }
+
+    /**
+     * Puts each corner of the model's box through the transform and takes the box around them
+     */
+    private void initWorldBounds () {
+        double [] box = bvh.bounds;
+        for (int k = 0; k < 3; k++) {
+            worldBounds[k] = Double.MAX_VALUE;
+            worldBounds[3 + k] = -Double.MAX_VALUE;
+        }
+        if (box[0] > box[3]) {
+            // Empty model, leave the box impossible to hit
+            return;
+        }
+        double [] m = toWorld;
+        for (int corner = 0; corner < 8; corner++) {
+            double x = box[(corner & 1) == 0 ? 0 : 3];
+            double y = box[(corner & 2) == 0 ? 1 : 4];
+            double z = box[(corner & 4) == 0 ? 2 : 5];
+            for (int k = 0; k < 3; k++) {
+                double v = m[4 * k] * x + m[4 * k + 1] * y + m[4 * k + 2] * z + m[4 * k + 3];
+                worldBounds[k] = Math.min(worldBounds[k], v);
+                worldBounds[3 + k] = Math.max(worldBounds[3 + k], v);
+            }
+        }
+    }
+
+    /**
+     * Points local along ray, moved into object space.
+     * Returns how many object space units one world space unit along the ray is,
+     * so a hit at t in object space is at t / scale in the world.
+     */
+    double toObject (Ray ray, Ray local) {
+        double [] m = toObject;
+        double ox = m[0] * ray.ox + m[1] * ray.oy + m[2] * ray.oz + m[3];
+        double oy = m[4] * ray.ox + m[5] * ray.oy + m[6] * ray.oz + m[7];
+        double oz = m[8] * ray.ox + m[9] * ray.oy + m[10] * ray.oz + m[11];
+        double dx = m[0] * ray.dx + m[1] * ray.dy + m[2] * ray.dz;
+        double dy = m[4] * ray.dx + m[5] * ray.dy + m[6] * ray.dz;
+        double dz = m[8] * ray.dx + m[9] * ray.dy + m[10] * ray.dz;
+        local.set(ox, oy, oz, dx, dy, dz);
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Turns an object space normal into a unit length world space one in place.
+     * Normals go through the transpose of the inverse so they stay perpendicular to the surface.
+     */
+    Vector normalToWorld (Vector n) {
+        double [] m = toObject;
+        return n.set(m[0] * n.x + m[4] * n.y + m[8] * n.z,
+                     m[1] * n.x + m[5] * n.y + m[9] * n.z,
+                     m[2] * n.x + m[6] * n.y + m[10] * n.z).makeUnitLength();
+    }
+}
@@ -27,6 +27,10 @@ public class Light {
         return brightness;
     }
 
+    public double getW () {
+        return w;
+    }
+
     public RGB getColor () {
         return lightcolor;
     }
@@ -0,0 +1,283 @@
+import java.util.List;
+
+/**
+ * A binary tree over the lights of a scene, for scenes with too many lights to trace a shadow
+ * ray to each one from every hit. Every node knows the box around its lights and their total power.
+ *
+ * A shading point gets a budget of shadow rays. Its cut through the tree starts at the root, and the
+ * cluster that could matter most is split into its two children until the cut is as big as the budget.
+ * Single lights in the cut are shaded as usual. Each cluster left in the cut is shaded through one of
+ * its lights, picked by walking down from the cluster choosing children in proportion to how much
+ * they could matter, and weighted by one over the chance of picking it. So on average every light is
+ * counted exactly once, and the cost of a hit depends on the budget rather than the number of lights.
+ *
+ * Lights here don't fall off with distance, so how much a cluster could matter is its power times
+ * the most that the cosine between the surface normal and any point in its bounding sphere can be.
+ * That bound is never below the real cosine, so a light only gets no chance at all if it can't add
+ * anything to the point anyway.
+ */
+public class LightTree {
+    private List<Light> lights;
+    // Bounding sphere center and radius of each node, 4 doubles a node
+    private double [] spheres;
+    // Sum of the red, green and blue of every light under each node
+    private double [] power;
+    // Index of a node's first child (the second is right after it), or -1 - light for a leaf
+    private int [] child;
+    private int nodeCount;
+
+    public LightTree (List<Light> lights) {
+        this.lights = lights;
+        int n = Math.max(1, 2 * lights.size() - 1);
+        spheres = new double [4 * n];
+        power = new double [n];
+        child = new int [n];
+        int [] order = new int [lights.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        nodeCount = 1;
+        if (order.length > 0) {
+            build(0, order, 0, order.length);
+        }
+    }
+
+    /**
+     * Makes node the parent of lights order[start, end), splitting them at the middle of their longest axis
+     */
+    private void build (int node, int [] order, int start, int end) {
+        double [] box = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                         -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double total = 0;
+        for (int i = start; i < end; i++) {
+            Light l = lights.get(order[i]);
+            Point p = l.getPosition();
+            box[0] = Math.min(box[0], p.x);
+            box[1] = Math.min(box[1], p.y);
+            box[2] = Math.min(box[2], p.z);
+            box[3] = Math.max(box[3], p.x);
+            box[4] = Math.max(box[4], p.y);
+            box[5] = Math.max(box[5], p.z);
+            RGB c = l.getColor();
+            total += Math.max(0, c.red) + Math.max(0, c.green) + Math.max(0, c.blue);
+        }
+        int s = 4 * node;
+        spheres[s] = (box[0] + box[3]) / 2;
+        spheres[s + 1] = (box[1] + box[4]) / 2;
+        spheres[s + 2] = (box[2] + box[5]) / 2;
+        double ex = box[3] - box[0], ey = box[4] - box[1], ez = box[5] - box[2];
+        spheres[s + 3] = Math.sqrt(ex * ex + ey * ey + ez * ez) / 2;
+        power[node] = total;
+        if (end - start == 1) {
+            child[node] = -1 - order[start];
+            return;
+        }
+        int axis = ex >= ey && ex >= ez ? 0 : (ey >= ez ? 1 : 2);
+        int mid = (start + end) >>> 1;
+        select(order, start, end, mid, axis);
+        int first = nodeCount;
+        nodeCount += 2;
+        child[node] = first;
+        build(first, order, start, mid);
+        build(first + 1, order, mid, end);
+    }
+
+    /**
+     * Partially sorts order[start, end) along axis so the light at k is where it would be if sorted
+     */
+    private void select (int [] order, int start, int end, int k, int axis) {
+        int lo = start, hi = end - 1;
+        while (lo < hi) {
+            double pivot = coord(order[(lo + hi) >>> 1], axis);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coord(order[i], axis) < pivot) {
+                    i++;
+                }
+                while (coord(order[j], axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coord (int light, int axis) {
+        Point p = lights.get(light).getPosition();
+        return axis == 0 ? p.x : (axis == 1 ? p.y : p.z);
+    }
+
+    /**
+     * How much node's lights could add at point p with unit normal n
+     */
+    private double importance (int node, Point p, Vector n) {
+        if (power[node] <= 0) {
+            return 0;
+        }
+        int s = 4 * node;
+        double dx = spheres[s] - p.x, dy = spheres[s + 1] - p.y, dz = spheres[s + 2] - p.z;
+        double radius = spheres[s + 3];
+        double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (d <= radius) {
+            return power[node];
+        }
+        double cosN = (dx * n.x + dy * n.y + dz * n.z) / d;
+        if (radius == 0) {
+            return cosN > 0 ? power[node] * cosN : 0;
+        }
+        // cos of the angle to the normal less the angle the sphere takes up, or 1 if the normal is inside it
+        double sinB = radius / d;
+        double cosB = Math.sqrt(1 - sinB * sinB);
+        if (cosN >= cosB) {
+            return power[node];
+        }
+        double sinN = Math.sqrt(Math.max(0, 1 - cosN * cosN));
+        double bound = cosN * cosB + sinN * sinB;
+        return bound > 0 ? power[node] * bound : 0;
+    }
+
+    /**
+     * Per thread working space for picking the lights of a shading point
+     */
+    public static class Sampler {
+        // The cut
+        private int [] nodes;
+        private double [] importance;
+        private int size;
+        // The lights to shade and how much each counts for
+        public int [] lights;
+        public double [] weights;
+        public int count;
+        private long random = 1;
+
+        public Sampler (int budget) {
+            nodes = new int [budget];
+            importance = new double [budget];
+            lights = new int [budget];
+            weights = new double [budget];
+        }
+
+        public int getBudget () {
+            return nodes.length;
+        }
+
+        /**
+         * Restarts the random numbers, so the same seed always picks the same lights
+         */
+        public void seed (long seed) {
+            // splitmix64 so neighbouring seeds don't start out alike
+            long z = seed + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            random = z == 0 ? 1 : z;
+        }
+
+        /**
+         * Uniform in [0, 1), xorshift64*
+         */
+        double nextRandom () {
+            random ^= random >>> 12;
+            random ^= random << 25;
+            random ^= random >>> 27;
+            return ((random * 0x2545F4914F6CDD1DL) >>> 11) * 0x1.0p-53;
+        }
+    }
+
+    /**
+     * Fills sampler's lights and weights with at most its budget of lights to shade point p with unit normal n
+     */
+    public void choose (Sampler sampler, Point p, Vector n) {
+        sampler.count = 0;
+        if (lights.isEmpty()) {
+            return;
+        }
+        int [] nodes = sampler.nodes;
+        double [] importance = sampler.importance;
+        int budget = nodes.length;
+        sampler.size = 0;
+        double rootImportance = importance(0, p, n);
+        if (rootImportance > 0) {
+            nodes[0] = 0;
+            importance[0] = rootImportance;
+            sampler.size = 1;
+        }
+        // Split the cluster that could matter most while there's budget left
+        while (sampler.size > 0 && sampler.size < budget) {
+            int best = -1;
+            for (int k = 0; k < sampler.size; k++) {
+                if (child[nodes[k]] >= 0 && (best < 0 || importance[k] > importance[best])) {
+                    best = k;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            int first = child[nodes[best]];
+            double a = importance(first, p, n);
+            double b = importance(first + 1, p, n);
+            // Children that can't add anything are left out
+            if (a > 0) {
+                nodes[best] = first;
+                importance[best] = a;
+                if (b > 0) {
+                    nodes[sampler.size] = first + 1;
+                    importance[sampler.size] = b;
+                    sampler.size++;
+                }
+            } else if (b > 0) {
+                nodes[best] = first + 1;
+                importance[best] = b;
+            } else {
+                nodes[best] = nodes[sampler.size - 1];
+                importance[best] = importance[sampler.size - 1];
+                sampler.size--;
+            }
+        }
+        for (int k = 0; k < sampler.size; k++) {
+            pick(sampler, nodes[k], p, n);
+        }
+    }
+
+    /**
+     * Walks down from node to one light, adding it with one over the chance it was picked
+     */
+    private void pick (Sampler sampler, int node, Point p, Vector n) {
+        double chance = 1;
+        while (child[node] >= 0) {
+            int first = child[node];
+            double a = importance(first, p, n);
+            double b = importance(first + 1, p, n);
+            if (a + b <= 0) {
+                return;
+            }
+            if (sampler.nextRandom() * (a + b) < a) {
+                chance *= a / (a + b);
+                node = first;
+            } else {
+                chance *= b / (a + b);
+                node = first + 1;
+            }
+        }
+        sampler.lights[sampler.count] = -1 - child[node];
+        sampler.weights[sampler.count] = 1 / chance;
+        sampler.count++;
+    }
+
+    public int size () {
+        return lights.size();
+    }
+}
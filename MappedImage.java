@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An image that lives in a memory mapped binary PPM (P6) file instead of on the heap.
+ * The file is made full size with its header up front, and pixels are written straight into it
+ * as tiles finish, so a render needs the same heap whatever its resolution and writing the image
+ * out at the end is just flushing it. The OS pages the file in and out as it sees fit.
+ *
+ * The file is mapped in bands of whole rows since one mapping can't be bigger than 2 GB.
+ */
+public class MappedImage extends Image {
+    // Most bytes in one mapping
+    private static final long MAX_BAND_BYTES = 1L << 30;
+
+    private Path path;
+    private MappedByteBuffer [] bands;
+    private int rowsPerBand;
+    private long rowBytes;
+
+    /**
+     * Makes filename a width x height P6 image (same width and height as Image) and maps it
+     */
+    public MappedImage (String filename, int width, int height) throws IOException {
+        super(width, height, false);
+        this.path = Paths.get(filename).toAbsolutePath().normalize();
+        byte [] header = String.format("P6\n%d %d %d\n", width, height, 255).getBytes(StandardCharsets.US_ASCII);
+        this.rowBytes = 3L * width;
+        this.rowsPerBand = (int) Math.max(1, Math.min(height, MAX_BAND_BYTES / Math.max(1, rowBytes)));
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        this.bands = new MappedByteBuffer [bandCount];
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(header));
+            long size = header.length + rowBytes * height;
+            // Sizes the file, the pixels in between start out black
+            if (size > header.length) {
+                out.write(ByteBuffer.wrap(new byte [1]), size - 1);
+            }
+            for (int b = 0; b < bandCount; b++) {
+                int rows = Math.min(rowsPerBand, height - b * rowsPerBand);
+                bands[b] = out.map(FileChannel.MapMode.READ_WRITE,
+                        header.length + b * (long) rowsPerBand * rowBytes, rows * rowBytes);
+            }
+        }
+    }
+
+    @Override
+    public void setPixel (int i, int j, int r, int g, int b) {
+        MappedByteBuffer band = bands[i / rowsPerBand];
+        int k = (int) ((i % rowsPerBand) * rowBytes) + 3 * j;
+        band.put(k, (byte) r);
+        band.put(k + 1, (byte) g);
+        band.put(k + 2, (byte) b);
+    }
+
+    @Override
+    public int getPackedPixel (int i, int j) {
+        MappedByteBuffer band = bands[i / rowsPerBand];
+        int k = (int) ((i % rowsPerBand) * rowBytes) + 3 * j;
+        return ((band.get(k) & 0xFF) << 16) | ((band.get(k + 1) & 0xFF) << 8) | (band.get(k + 2) & 0xFF);
+    }
+
+    /**
+     * Writing a binary image to the file it's mapped from just makes sure it's all on disk,
+     * anything else is written out like a normal image
+     */
+    @Override
+    public boolean writeToFile (String filename, boolean binary) {
+        if (binary && Paths.get(filename).toAbsolutePath().normalize().equals(path)) {
+            try {
+                for (MappedByteBuffer band : bands) {
+                    band.force();
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to output image file");
+                System.err.println(e);
+                return false;
+            }
+            return true;
+        }
+        return super.writeToFile(filename, binary);
+    }
+}
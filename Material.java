@@ -1,8 +1,5 @@
-import org.ejml.simple.SimpleMatrix;
-import java.util.Scanner;
 import java.util.List;
 import java.util.ArrayList;
-import java.io.File;
 
 public class Material {
     public RGB ambient;
@@ -29,8 +26,13 @@ public class Material {
         this.phong = 16;
     }
 
+    /**
+     * Reads every material out of a mtl file.
+     * Ka, Kd, Ks and Ns carry over from the previous material if a material doesn't set them,
+     * Kr (attenuation) goes back to 1, 1, 1 for each new material.
+     */
     public static List<Material> fromFile (String filename) {
-        try {
+        try (TokenReader reader = new TokenReader(filename)) {
             RGB ambient = null; 
             RGB diffuse = null;
             RGB specular = null;
@@ -38,49 +40,35 @@ public class Material {
             List<Material> matList = new ArrayList<Material>();
             String currMatName = null;
             double p = 0.0;            
-            Scanner fReader = new Scanner (new File (filename));      
-            while (fReader.hasNext()) {
-                String line = fReader.nextLine();
-                if (!line.startsWith("#*") || !line.matches("\\s")) {
-                    String [] lineItems = line.split(" ");
-                    if (lineItems[0].equalsIgnoreCase("newmtl")) {
-                    	String materialName = lineItems[1];
-                    	while (fReader.hasNext() && !fReader.hasNext("newmtl*")) {
-                    		line = fReader.nextLine();
-                    		lineItems = line.split(" ");
-                    		double a, b, c;
-                            if (lineItems[0].equalsIgnoreCase("Ka")) {
-                                a = Double.parseDouble(lineItems[1]);
-                                b = Double.parseDouble(lineItems[2]);
-                                c = Double.parseDouble(lineItems[3]);
-                                ambient = new RGB (a,b,c);
-                            } else if (lineItems[0].equalsIgnoreCase("Kd")) {
-                                a = Double.parseDouble(lineItems[1]);
-                                b = Double.parseDouble(lineItems[2]);
-                                c = Double.parseDouble(lineItems[3]);
-                                diffuse = new RGB (a,b,c);
-                            } else if (lineItems[0].equalsIgnoreCase("Ks")) {
-                                a = Double.parseDouble(lineItems[1]);
-                                b = Double.parseDouble(lineItems[2]);
-                                c = Double.parseDouble(lineItems[3]);
-                                specular = new RGB (a,b,c);
-                            } else if (lineItems[0].equalsIgnoreCase("Ns")) {
-                                p = Double.parseDouble(lineItems[1]);
-                            } else if (lineItems[0].equalsIgnoreCase("Kr")) {
-                                a = Double.parseDouble(lineItems[1]);
-                                b = Double.parseDouble(lineItems[2]);
-                                c = Double.parseDouble(lineItems[3]);
-                                attenuation = new RGB (a,b,c);
-                            } else {
-                                // Just do nothing with this for now
-                            }
-                    	}
-                    	matList.add(new Material(ambient, diffuse, specular, attenuation, p, materialName));
-                    	attenuation = new RGB (1,1,1);
+            while (reader.nextLine()) {
+                if (!reader.nextToken() || reader.tokenStartsWith('#')) {
+                    continue;
+                }
+                if (reader.tokenEqualsIgnoreCase("newmtl")) {
+                    // Finish off the material we were reading
+                    if (currMatName != null) {
+                        matList.add(new Material(ambient, diffuse, specular, attenuation, p, currMatName));
+                        attenuation = new RGB (1,1,1);
                     }
+                    reader.nextToken();
+                    currMatName = reader.tokenString();
+                } else if (reader.tokenEqualsIgnoreCase("Ka")) {
+                    ambient = new RGB (reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+                } else if (reader.tokenEqualsIgnoreCase("Kd")) {
+                    diffuse = new RGB (reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+                } else if (reader.tokenEqualsIgnoreCase("Ks")) {
+                    specular = new RGB (reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+                } else if (reader.tokenEqualsIgnoreCase("Ns")) {
+                    p = reader.nextDouble();
+                } else if (reader.tokenEqualsIgnoreCase("Kr")) {
+                    attenuation = new RGB (reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+                } else {
+                    // Just do nothing with this for now
                 }
             }
-            fReader.close();
+            if (currMatName != null) {
+                matList.add(new Material(ambient, diffuse, specular, attenuation, p, currMatName));
+            }
             return matList;
         } catch (Exception e) {
             System.err.println("Failure in generating material from file");
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every material the program has loaded, each with a small integer id that meshes store per triangle.
+ *
+ * Each mtl file is read once no matter how many obj files use it (and again if it changes), and usemtl names are looked up
+ * in a map instead of scanning the library. Materials with the same name and values are the same
+ * material, so two libraries defining an identical material share one id.
+ *
+ * Meshes hold on to the ids they use through a Uses. Once nothing refers to a Uses any more
+ * (every mesh sharing it has been dropped, by the MeshCache and by the scenes that were rendering it)
+ * its ids are let go, and materials nobody uses are dropped along with libraries none of whose materials
+ * are used. Their ids are given out again, so a long running daemon only keeps the materials of live models.
+ */
+public class MaterialLibrary {
+    // Rough number of bytes a material takes up here, with its colors, name and key
+    public static final int MATERIAL_BYTES = 400;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static volatile Material [] materials = new Material [16];
+    // Number of Uses holding each id
+    private static int [] refs = new int [16];
+    private static int count;
+    // Ids below count that were dropped and can be given out again
+    private static BitSet free = new BitSet();
+    // Canonical id for each distinct material
+    private static Map<String, Integer> ids = new HashMap<String, Integer>();
+    // Lower cased material name to id for each library loaded, by path
+    private static Map<String, Map<String, Integer>> libraries = new HashMap<String, Map<String, Integer>>();
+    // Modified time and size of each library when it was read
+    private static Map<String, String> stamps = new HashMap<String, String>();
+
+    private MaterialLibrary () {
+    }
+
+    /**
+     * The ids one mesh (or the meshes sharing its triangles) use, let go once it's unreachable
+     */
+    public static final class Uses {
+        private final Held held = new Held();
+
+        public Uses () {
+            CLEANER.register(this, held);
+        }
+
+        /**
+         * Holds on to id, if it isn't held already. Only the thread building the mesh calls this.
+         */
+        public void add (int id) {
+            if (id >= 0 && !held.ids.get(id)) {
+                acquire(held, id);
+            }
+        }
+
+        /**
+         * Number of different materials held
+         */
+        public int count () {
+            return held.ids.cardinality();
+        }
+    }
+
+    // Kept apart from Uses so the cleaner doesn't keep the Uses reachable
+    private static final class Held implements Runnable {
+        final BitSet ids = new BitSet();
+
+        public void run () {
+            release(ids);
+        }
+    }
+
+    /**
+     * Reads the mtl file at path unless it has already been read.
+     * A file that fails to load stays empty, so it isn't tried again until it changes (or gets dropped).
+     * Materials of an older version of the file keep their ids while meshes loaded from it still use them.
+     */
+    public static synchronized void load (String path) {
+        File f = new File(path);
+        String stamp = f.lastModified() + ":" + f.length();
+        if (libraries.containsKey(path) && stamp.equals(stamps.get(path))) {
+            return;
+        }
+        stamps.put(path, stamp);
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        List<Material> matList = Material.fromFile(path);
+        if (matList != null) {
+            for (Material m : matList) {
+                // Later materials win when names repeat, like the old scan did
+                names.put(m.name.toLowerCase(), add(m));
+            }
+        }
+        if (libraries.put(path, names) != null) {
+            sweep();
+        }
+    }
+
+    /**
+     * Returns the id of the material called name (ignoring case) in the library at path, held by uses,
+     * or -1 if the library doesn't have it. A library that was dropped since it was loaded is read again.
+     */
+    public static synchronized int lookup (String path, String name, Uses uses) {
+        if (path == null || name == null) {
+            return -1;
+        }
+        if (!libraries.containsKey(path)) {
+            load(path);
+        }
+        Integer id = libraries.get(path).get(name.toLowerCase());
+        if (id == null) {
+            return -1;
+        }
+        uses.add(id);
+        return id;
+    }
+
+    /**
+     * Returns the id for m held by uses, adding it if no material with the same name and values is here yet
+     */
+    public static synchronized int intern (Material m, Uses uses) {
+        int id = add(m);
+        uses.add(id);
+        return id;
+    }
+
+    private static int add (Material m) {
+        String key = keyOf(m);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        int slot = free.nextSetBit(0);
+        if (slot >= 0) {
+            free.clear(slot);
+        } else {
+            if (count == materials.length) {
+                // Copied rather than grown in place so get never needs the lock
+                materials = Arrays.copyOf(materials, 2 * count);
+                refs = Arrays.copyOf(refs, 2 * count);
+            }
+            slot = count++;
+        }
+        materials[slot] = m;
+        ids.put(key, slot);
+        return slot;
+    }
+
+    private static synchronized void acquire (Held held, int id) {
+        held.ids.set(id);
+        refs[id]++;
+    }
+
+    private static synchronized void release (BitSet held) {
+        boolean unused = false;
+        for (int id = held.nextSetBit(0); id >= 0; id = held.nextSetBit(id + 1)) {
+            if (--refs[id] == 0) {
+                unused = true;
+            }
+        }
+        if (unused) {
+            sweep();
+        }
+    }
+
+    /**
+     * Drops the libraries none of whose materials are used, then the materials that are neither used
+     * nor in a library that's left
+     */
+    private static void sweep () {
+        BitSet named = new BitSet();
+        Iterator<Map.Entry<String, Map<String, Integer>>> it = libraries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Map<String, Integer>> library = it.next();
+            boolean used = false;
+            for (int id : library.getValue().values()) {
+                used |= refs[id] > 0;
+            }
+            if (used) {
+                for (int id : library.getValue().values()) {
+                    named.set(id);
+                }
+            } else {
+                stamps.remove(library.getKey());
+                it.remove();
+            }
+        }
+        for (int id = 0; id < count; id++) {
+            if (materials[id] != null && refs[id] == 0 && !named.get(id)) {
+                ids.remove(keyOf(materials[id]));
+                materials[id] = null;
+                free.set(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the material with the given id
+     */
+    public static Material get (int id) {
+        return materials[id];
+    }
+
+    /**
+     * Number of materials held right now
+     */
+    public static synchronized int size () {
+        return count - free.cardinality();
+    }
+
+    private static String keyOf (Material m) {
+        return m.name + "|" + keyOf(m.ambient) + "|" + keyOf(m.diffuse) + "|" + keyOf(m.specular)
+             + "|" + keyOf(m.attenuation) + "|" + Double.doubleToLongBits(m.phong);
+    }
+
+    private static String keyOf (RGB c) {
+        if (c == null) {
+            return "-";
+        }
+        return Double.doubleToLongBits(c.red) + "," + Double.doubleToLongBits(c.green) + "," + Double.doubleToLongBits(c.blue);
+    }
+}
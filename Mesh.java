@@ -0,0 +1,307 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Packed triangle geometry.
+ * Instead of a Face object holding Points for every triangle, everything lives in flat arrays:
+ *  - positions: x, y, z for each vertex
+ *  - indices: the three (0 indexed) vertices of each triangle
+ *  - normals: the unit surface normal of each triangle
+ *  - materialIds: MaterialLibrary id of each triangle's material, -1 if none, held by materialUses
+ *  - vertexNormals: x, y, z of each vn line in the obj file, in object space
+ *  - normalIndices: the vertex normal used at each corner of each triangle, -1 if none.
+ *      Only allocated once a triangle references a vertex normal.
+ *
+ * Triangle t uses vertices indices[3t], indices[3t + 1], indices[3t + 2]
+ * and its normal is normals[3t ... 3t + 2]
+ */
+public class Mesh {
+    double [] positions;
+    int [] indices;
+    float [] normals;
+    int [] materialIds;
+    float [] vertexNormals;
+    int [] normalIndices;
+    // Made the first time a material is used, shared with meshes built from this one
+    MaterialLibrary.Uses materialUses;
+    int vertexCount;
+    int vertexNormalCount;
+    int triangleCount;
+
+    public Mesh () {
+        positions = new double [3 * 16];
+        indices = new int [3 * 16];
+        normals = new float [3 * 16];
+        materialIds = new int [16];
+        vertexNormals = new float [0];
+    }
+
+    /**
+     * Builds a mesh with the same triangles and materials as other, but with new vertex positions.
+     * The index and material arrays are shared instead of copied.
+     */
+    public Mesh (Mesh other, double [] positions) {
+        this.positions = positions;
+        this.vertexCount = other.vertexCount;
+        this.indices = other.indices;
+        this.materialIds = other.materialIds;
+        this.materialUses = other.materialUses;
+        this.vertexNormals = other.vertexNormals;
+        this.normalIndices = other.normalIndices;
+        this.vertexNormalCount = other.vertexNormalCount;
+        this.triangleCount = other.triangleCount;
+        this.normals = new float [3 * triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            initNormal(t);
+        }
+    }
+
+    /**
+     * Adds a vertex and returns its index
+     */
+    public int addVertex (double x, double y, double z) {
+        if (3 * vertexCount + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+        }
+        positions[3 * vertexCount] = x;
+        positions[3 * vertexCount + 1] = y;
+        positions[3 * vertexCount + 2] = z;
+        return vertexCount++;
+    }
+
+    /**
+     * Adds a vertex normal and returns its index
+     */
+    public int addVertexNormal (double x, double y, double z) {
+        if (3 * vertexNormalCount + 3 > vertexNormals.length) {
+            vertexNormals = Arrays.copyOf(vertexNormals, Math.max(48, 2 * vertexNormals.length));
+        }
+        vertexNormals[3 * vertexNormalCount] = (float) x;
+        vertexNormals[3 * vertexNormalCount + 1] = (float) y;
+        vertexNormals[3 * vertexNormalCount + 2] = (float) z;
+        return vertexNormalCount++;
+    }
+
+    /**
+     * Adds the triangle a, b, c (0 indexed vertices) and returns its index
+     */
+    public int addTriangle (int a, int b, int c, int materialId) {
+        if (3 * triangleCount + 3 > indices.length) {
+            indices = Arrays.copyOf(indices, 2 * indices.length);
+            normals = Arrays.copyOf(normals, 2 * normals.length);
+            materialIds = Arrays.copyOf(materialIds, 2 * materialIds.length);
+        }
+        indices[3 * triangleCount] = a;
+        indices[3 * triangleCount + 1] = b;
+        indices[3 * triangleCount + 2] = c;
+        materialIds[triangleCount] = materialId;
+        useMaterial(materialId);
+        if (normalIndices != null) {
+            if (normalIndices.length < indices.length) {
+                normalIndices = Arrays.copyOf(normalIndices, indices.length);
+            }
+            normalIndices[3 * triangleCount] = -1;
+            normalIndices[3 * triangleCount + 1] = -1;
+            normalIndices[3 * triangleCount + 2] = -1;
+        }
+        initNormal(triangleCount);
+        return triangleCount++;
+    }
+
+    /**
+     * Holds on to material id for as long as this mesh is around, for triangles whose ids are set directly
+     */
+    public void useMaterial (int id) {
+        if (id >= 0) {
+            getMaterialUses().add(id);
+        }
+    }
+
+    /**
+     * The materials this mesh holds on to, for looking up or interning materials straight into it
+     */
+    public MaterialLibrary.Uses getMaterialUses () {
+        if (materialUses == null) {
+            materialUses = new MaterialLibrary.Uses();
+        }
+        return materialUses;
+    }
+
+    /**
+     * Adds the triangle a, b, c with vertex normals na, nb, nc (0 indexed, -1 for none)
+     */
+    public int addTriangle (int a, int b, int c, int na, int nb, int nc, int materialId) {
+        int t = addTriangle(a, b, c, materialId);
+        if (na < 0 && nb < 0 && nc < 0) {
+            return t;
+        }
+        if (normalIndices == null) {
+            normalIndices = new int [indices.length];
+            Arrays.fill(normalIndices, -1);
+        }
+        normalIndices[3 * t] = na;
+        normalIndices[3 * t + 1] = nb;
+        normalIndices[3 * t + 2] = nc;
+        return t;
+    }
+
+    /**
+     * Returns the vertex normal index at corner k (0, 1, 2) of triangle t, -1 if it doesn't have one
+     */
+    public int getNormalIndex (int t, int k) {
+        return normalIndices == null ? -1 : normalIndices[3 * t + k];
+    }
+
+    /**
+     * Adds every vertex and triangle of other onto the end of this mesh
+     */
+    public void append (Mesh other) {
+        int vertexBase = vertexCount;
+        for (int v = 0; v < other.vertexCount; v++) {
+            addVertex(other.positions[3 * v], other.positions[3 * v + 1], other.positions[3 * v + 2]);
+        }
+        int normalBase = vertexNormalCount;
+        for (int n = 0; n < other.vertexNormalCount; n++) {
+            addVertexNormal(other.vertexNormals[3 * n], other.vertexNormals[3 * n + 1], other.vertexNormals[3 * n + 2]);
+        }
+        for (int t = 0; t < other.triangleCount; t++) {
+            int na = other.getNormalIndex(t, 0);
+            int nb = other.getNormalIndex(t, 1);
+            int nc = other.getNormalIndex(t, 2);
+            addTriangle(vertexBase + other.indices[3 * t],
+                        vertexBase + other.indices[3 * t + 1],
+                        vertexBase + other.indices[3 * t + 2],
+                        na < 0 ? -1 : normalBase + na,
+                        nb < 0 ? -1 : normalBase + nb,
+                        nc < 0 ? -1 : normalBase + nc,
+                        other.materialIds[t]);
+        }
+    }
+
+    /**
+     * Drops the spare capacity left over from loading
+     */
+    public void trim () {
+        positions = Arrays.copyOf(positions, 3 * vertexCount);
+        indices = Arrays.copyOf(indices, 3 * triangleCount);
+        normals = Arrays.copyOf(normals, 3 * triangleCount);
+        materialIds = Arrays.copyOf(materialIds, triangleCount);
+        vertexNormals = Arrays.copyOf(vertexNormals, 3 * vertexNormalCount);
+        if (normalIndices != null) {
+            normalIndices = Arrays.copyOf(normalIndices, 3 * triangleCount);
+        }
+    }
+
+    /**
+     * Rearranges the triangles so the triangle at position i is the old triangle order[i].
+     * The BVH uses this to lay triangles out in the order its leaves visit them.
+     */
+    public void reorderTriangles (int [] order) {
+        int [] newIndices = new int [3 * triangleCount];
+        float [] newNormals = new float [3 * triangleCount];
+        int [] newMaterialIds = new int [triangleCount];
+        int [] newNormalIndices = normalIndices == null ? null : new int [3 * triangleCount];
+        for (int i = 0; i < triangleCount; i++) {
+            int t = order[i];
+            System.arraycopy(indices, 3 * t, newIndices, 3 * i, 3);
+            System.arraycopy(normals, 3 * t, newNormals, 3 * i, 3);
+            newMaterialIds[i] = materialIds[t];
+            if (newNormalIndices != null) {
+                System.arraycopy(normalIndices, 3 * t, newNormalIndices, 3 * i, 3);
+            }
+        }
+        normalIndices = newNormalIndices;
+        indices = newIndices;
+        normals = newNormals;
+        materialIds = newMaterialIds;
+    }
+
+    /**
+     * Calculate the surface normal using the cross product of the edges AC x AB
+     */
+    private void initNormal (int t) {
+        int a = 3 * indices[3 * t];
+        int b = 3 * indices[3 * t + 1];
+        int c = 3 * indices[3 * t + 2];
+        double acx = positions[c] - positions[a];
+        double acy = positions[c + 1] - positions[a + 1];
+        double acz = positions[c + 2] - positions[a + 2];
+        double abx = positions[b] - positions[a];
+        double aby = positions[b + 1] - positions[a + 1];
+        double abz = positions[b + 2] - positions[a + 2];
+        double nx = acy * abz - acz * aby;
+        double ny = acz * abx - acx * abz;
+        double nz = acx * aby - acy * abx;
+        double magnitude = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (magnitude == 0) {
+            magnitude = 1;
+        }
+        normals[3 * t] = (float) (nx / magnitude);
+        normals[3 * t + 1] = (float) (ny / magnitude);
+        normals[3 * t + 2] = (float) (nz / magnitude);
+    }
+
+    /**
+     * Returns the surface normal for triangle t
+     */
+    public Vector getNormal (int t) {
+        return getNormal(t, new Vector(0, 0, 0));
+    }
+
+    /**
+     * Writes the surface normal for triangle t into out
+     */
+    public Vector getNormal (int t, Vector out) {
+        return out.set(normals[3 * t], normals[3 * t + 1], normals[3 * t + 2]).makeUnitLength();
+    }
+
+    /**
+     * Returns the material for triangle t, or null if it doesn't have one
+     */
+    public Material getMaterial (int t) {
+        int id = materialIds[t];
+        return id < 0 ? null : MaterialLibrary.get(id);
+    }
+
+    /**
+     * Returns vertex v as a point
+     */
+    public Point getVertex (int v) {
+        return new Point (positions[3 * v], positions[3 * v + 1], positions[3 * v + 2]);
+    }
+
+    public int getVertexCount () {
+        return vertexCount;
+    }
+
+    public int getTriangleCount () {
+        return triangleCount;
+    }
+
+    /**
+     * Rough number of bytes held by the arrays of this mesh and the materials it holds on to
+     */
+    public long getByteSize () {
+        return 8L * positions.length + 4L * indices.length + 4L * normals.length + 4L * materialIds.length
+             + 4L * vertexNormals.length + (normalIndices == null ? 0 : 4L * normalIndices.length)
+             + (materialUses == null ? 0 : (long) MaterialLibrary.MATERIAL_BYTES * materialUses.count());
+    }
+
+    /**
+     * Number of different materials the triangles use
+     */
+    public int getMaterialCount () {
+        BitSet used = new BitSet();
+        for (int t = 0; t < triangleCount; t++) {
+            if (materialIds[t] >= 0) {
+                used.set(materialIds[t]);
+            }
+        }
+        return used.cardinality();
+    }
+
+    public String toString () {
+        return String.format("Mesh: %d vertices, %d vertex normals, %d triangles, %d materials",
+                vertexCount, vertexNormalCount, triangleCount, getMaterialCount());
+    }
+}
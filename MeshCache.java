@@ -0,0 +1,140 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads each obj file once and builds a BVH over it in object space,
+ * no matter how many times the driver file places it.
+ *
+ * The cache can be kept around between renders (the render daemon does). Models are
+ * loaded again if the size or modified time of their obj or mtl files changes, and once
+ * the models held (with the materials they use) take up more than the byte limit the least recently
+ * used ones are dropped. Scenes already holding a dropped model keep it until they're done with it,
+ * after that its materials go too unless another model uses them, see MaterialLibrary.
+ */
+public class MeshCache {
+    private static final List<Sphere> NO_SPHERES = new ArrayList<Sphere>();
+
+    private static class Entry {
+        BVH bvh;
+        long bytes;
+        // The obj and mtl files it came from, and what they looked like when read
+        List<String> files = new ArrayList<String>();
+        List<Long> modified = new ArrayList<Long>();
+        List<Long> lengths = new ArrayList<Long>();
+
+        void addFile (String filename) {
+            File f = new File(filename);
+            files.add(filename);
+            modified.add(f.lastModified());
+            lengths.add(f.length());
+        }
+
+        String changedFile () {
+            for (int i = 0; i < files.size(); i++) {
+                File f = new File(files.get(i));
+                if (f.lastModified() != modified.get(i) || f.length() != lengths.get(i)) {
+                    return files.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    // In least to most recently used order
+    private LinkedHashMap<String, Entry> models = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+
+    public MeshCache () {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * A cache that keeps at most about maxBytes of models, though always at least the last one loaded
+     */
+    public MeshCache (long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the BVH of the model in filename, loading it the first time it's asked for
+     */
+    public BVH get (String filename) {
+        return get(filename, null);
+    }
+
+    /**
+     * Same as get, adding any time spent loading and building into stats
+     */
+    public synchronized BVH get (String filename, RenderStats stats) {
+        Entry entry = models.get(filename);
+        String changed = entry == null ? null : entry.changedFile();
+        if (changed != null) {
+            System.out.printf("'%s' has changed, loading '%s' again...\n", changed, filename);
+            models.remove(filename);
+            bytes -= entry.bytes;
+            entry = null;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entry.addFile(filename);
+            long start = System.nanoTime();
+            ObjectModel obj = new ObjectModel(filename);
+            for (String mtl : obj.getMaterialFiles()) {
+                entry.addFile(mtl);
+            }
+            long loaded = System.nanoTime();
+            entry.bvh = new BVH(obj.getMesh(), NO_SPHERES);
+            if (stats != null) {
+                stats.loadNanos += loaded - start;
+                stats.buildNanos += System.nanoTime() - loaded;
+            }
+            entry.bytes = entry.bvh.getByteSize();
+            models.put(filename, entry);
+            bytes += entry.bytes;
+            evict();
+        }
+        return entry.bvh;
+    }
+
+    /**
+     * Drops least recently used models until the cache fits, never the most recent one
+     */
+    private void evict () {
+        Iterator<Entry> it = models.values().iterator();
+        while (bytes > maxBytes && models.size() > 1) {
+            bytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * The obj and mtl files of the models held, each once
+     */
+    public synchronized List<String> getSourceFiles () {
+        Set<String> files = new LinkedHashSet<String>();
+        for (Entry entry : models.values()) {
+            files.addAll(entry.files);
+        }
+        return new ArrayList<String>(files);
+    }
+
+    /**
+     * Number of distinct models held
+     */
+    public synchronized int size () {
+        return models.size();
+    }
+
+    /**
+     * Rough number of bytes held by the meshes, BVHs and materials of every model
+     */
+    public synchronized long getByteSize () {
+        return bytes;
+    }
+}
@@ -1,6 +1,5 @@
-import java.util.Scanner;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import org.ejml.simple.SimpleMatrix;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -11,16 +10,13 @@ public class ObjectModel {
   private static final String matlib_path = "./drivers_models/";
   // The set abstraction is used, because theoretically two equal vertices does nothing.
   private String name;
-  // vertices
-  private SimpleMatrix verticesMatrix;
-  private List<Point> vertices;
-  // vertex normals
-  private SimpleMatrix vertexNormalsMatrix;  
-  private List<Point> vertex_normals;
-  private List<Face> faces;
+  // Packed vertices, faces, and materials
+  private Mesh mesh;
   private Boolean smoothing;
   private String tempSaveSmoothing = "";
   private List<String> commentBlock;
+  // Every mtl file the obj file pulled in
+  private List<String> materialFiles = new ArrayList<String>();
 
   /**
    * The single string constructor will initialize the ObjectModel from a *.obj file.
@@ -28,11 +24,10 @@ public class ObjectModel {
   public ObjectModel(String fname){
     name = "default";
     smoothing = false;
-    vertices = new ArrayList<Point>();
-    vertex_normals = new ArrayList<Point>();
-    faces = new ArrayList<Face>();
+    mesh = new Mesh();
     commentBlock = new ArrayList<String>(2);    
     InitObjectFromFile(fname, this); // Will side effect state of 'this'
+    mesh.trim();
   }
 
   /**
@@ -42,126 +37,118 @@ public class ObjectModel {
   public ObjectModel(SimpleMatrix origin, ObjectModel obj) {
     name = obj.name;
     smoothing = obj.smoothing;
-    vertex_normals = obj.vertex_normals;
     commentBlock = obj.commentBlock;
-    vertices = new ArrayList<Point>();
-    faces = new ArrayList<Face>();
-    verticesMatrix = origin;
-    // Take the SimpleMatrix and construct a new set of faces and vertices
-    for (int i = 0; i < obj.vertices.size(); i++) {
-      double x = origin.get(0, i);
-      double y = origin.get(1, i);
-      double z = origin.get(2, i);
-      Point vertex = new Point (x, y, z);
-      vertices.add(vertex);
-    }
-    // Rearrange all the faces based on the new vertices
-    for (int j = 0; j < obj.faces.size(); j++) {
-      int [] indices = obj.faces.get(j).getIndices();
-      Material m = obj.faces.get(j).getMaterial();
-      int xf_index = indices[0];
-      int yf_index = indices[1];
-      int zf_index = indices[2];
-      Point xf = vertices.get(xf_index - 1);
-      Point yf = vertices.get(yf_index - 1);
-      Point zf = vertices.get(zf_index - 1);
-      faces.add(new Face (xf, yf, zf, indices, m));
+    // Take the SimpleMatrix and pack the transformed vertices, the faces and materials stay the same
+    double [] positions = new double [3 * obj.mesh.getVertexCount()];
+    for (int i = 0; i < obj.mesh.getVertexCount(); i++) {
+      positions[3 * i] = origin.get(0, i);
+      positions[3 * i + 1] = origin.get(1, i);
+      positions[3 * i + 2] = origin.get(2, i);
     }
+    mesh = new Mesh(obj.mesh, positions);
   }
 
   @Override
   public String toString() {
     String str = this.name + ":\n" ;
-    str += "Vertices:\n";
-    str += verticesMatrix.toString();
-    str += "Vertex Normals:\n";
-    str += vertexNormalsMatrix.toString();
-    str += "Faces:\n";
-    for (Face f : this.faces) {
-      str += "\n" + f + "\n";
-    }
+    str += mesh + "\n";
     str += "Smoothing: '" + this.smoothing.toString() + "'\n";
     return str;
   }
 
   /**
    * Loads a wavefront obj file into the object model
+   * Faces with more than 3 vertices are split into a fan of triangles around the first vertex,
+   * and negative indices count back from the most recent vertex (-1 is the last one).
    */
   private static void InitObjectFromFile(String fname, ObjectModel newObject){
     // cube.obj --> ["cube", "obj"]
     newObject.name = fname;
-    Material current_material = null;
-    List<Material> matList = new ArrayList<Material>();
-    try {
-      Scanner fReader = new Scanner(new File(fname));
-      int lineCount = 0;
-      // Maintain the comment block
-      while (fReader.hasNext("#*")) {
-        String commentLine = fReader.nextLine();
-        newObject.commentBlock.add(commentLine);
-      }
+    Mesh mesh = newObject.mesh;
+    int current_material = -1;
+    // Path of the mtl file usemtl names are looked up in
+    String library = null;
+    // Vertex and normal indices of the face being read, grown for big polygons
+    int [] faceVerts = new int [4];
+    int [] faceNormals = new int [4];
+    boolean inCommentBlock = true;
+    try (TokenReader reader = new TokenReader(fname)) {
       // Parse file
-      while (fReader.hasNext()) {
-        lineCount++;
-        String line = fReader.nextLine();
+      while (reader.nextLine()) {
+        // Skip blank lines
+        if (!reader.nextToken()) {
+          continue;
+        }
         // Lines starting with '#' are comments
-        if (!line.startsWith("#")) {
-          String [] lineItems = line.split(" ");
-          // Line is a vertex or vertex normal
-          // v 0.000000 4.000000 4.000000
-          // vn 0.0000 0.0000 1.0000
-          if (lineItems[0].equals("v") || lineItems[0].equals("vn")) {
-            double x = Double.parseDouble(lineItems[1]);
-            double y = Double.parseDouble(lineItems[2]);
-            double z = Double.parseDouble(lineItems[3]);
-            Point vert = new Point(x, y, z);
-            // Add vert to vertices, or vertex normals depending on line designator
-            if (lineItems[0].equals("v")) {
-              newObject.vertices.add(vert);                
-            } else {
-              newObject.vertex_normals.add(vert);
-            }
-          } else if (lineItems[0].equals("f")) {
-            // f 2//1 4//1 1//1
-            // Get the indices for each vertex that makes up the face
-            int av_index = Integer.parseInt(lineItems[1].split("/")[0]);
-            int bv_index = Integer.parseInt(lineItems[2].split("/")[0]);
-            int cv_index = Integer.parseInt(lineItems[3].split("/")[0]);
-            // Save a list to back track what the indices are when you write the file back out
-            int [] indices = {av_index, bv_index, cv_index};
-            // Get the point for each vertex index, have to do -1 because the file is 1 indexed instead of 0 indexed
-            Point av = newObject.vertices.get(av_index - 1);
-            Point bv = newObject.vertices.get(bv_index - 1);
-            Point cv = newObject.vertices.get(cv_index - 1);
-            // Create new face object and it to the list
-            newObject.faces.add(new Face(av, bv, cv, indices, current_material));
-          } else if (lineItems[0].equals("s")) {
-            // I have no idea what the 's' does right now
-            newObject.tempSaveSmoothing = line;
-            // newObject.smoothing = false; ??
-          } else if (lineItems[0].equals("mtllib")) {
-            // Set the current material
-            matList = Material.fromFile(matlib_path + lineItems[1]);
-          } else if (lineItems[0].equals("usemtl")) {
-            String matName = lineItems[1];
-            for (Material m : matList) {
-              if (m.name.equalsIgnoreCase(matName)) {
-                current_material = m;
+        if (reader.tokenStartsWith('#')) {
+          // Maintain the comment block
+          if (inCommentBlock) {
+            newObject.commentBlock.add(reader.tokenString() + " " + reader.restOfLine());
+          }
+          continue;
+        }
+        inCommentBlock = false;
+        // Line is a vertex or vertex normal
+        // v 0.000000 4.000000 4.000000
+        // vn 0.0000 0.0000 1.0000
+        if (reader.tokenEquals("v")) {
+          mesh.addVertex(reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+        } else if (reader.tokenEquals("vn")) {
+          mesh.addVertexNormal(reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+        } else if (reader.tokenEquals("f")) {
+          // f 2//1 4//1 1//1
+          // Get the indices for each vertex that makes up the face
+          int count = 0;
+          boolean parsed = true;
+          try {
+            while (reader.nextToken()) {
+              if (count == faceVerts.length) {
+                faceVerts = Arrays.copyOf(faceVerts, 2 * count);
+                faceNormals = Arrays.copyOf(faceNormals, 2 * count);
               }
+              faceVerts[count] = resolveIndex(reader.tokenIndexPart(0), mesh.getVertexCount());
+              int n = reader.tokenIndexPart(2);
+              faceNormals[count] = n == 0 ? -1 : resolveIndex(n, mesh.vertexNormalCount);
+              count++;
             }
-          } else {
-            // unrecognized symbol, ignore
-            System.err.printf("Unrecognized symbol '%s' in '%s'\n\tLine %d: %s", lineItems[0], fname, lineCount, line);
+          } catch (NumberFormatException e) {
+            parsed = false;
+          }
+          if (!parsed || count < 3 || !indicesInRange(faceVerts, count, mesh.getVertexCount(), false)
+              || !indicesInRange(faceNormals, count, mesh.vertexNormalCount, true)) {
+            System.err.printf("Skipping bad face in '%s'\n\tLine %d\n", fname, reader.getLineNumber());
+            continue;
+          }
+          // Fan out from the first vertex: (0, 1, 2), (0, 2, 3) ...
+          for (int k = 1; k + 1 < count; k++) {
+            mesh.addTriangle(faceVerts[0], faceVerts[k], faceVerts[k + 1],
+                             faceNormals[0], faceNormals[k], faceNormals[k + 1], current_material);
+          }
+        } else if (reader.tokenEquals("s")) {
+          // I have no idea what the 's' does right now
+          newObject.tempSaveSmoothing = "s " + reader.restOfLine();
+          // newObject.smoothing = false; ??
+        } else if (reader.tokenEquals("mtllib")) {
+          // Set the current material
+          reader.nextToken();
+          library = matlib_path + reader.tokenString();
+          newObject.materialFiles.add(library);
+          MaterialLibrary.load(library);
+        } else if (reader.tokenEquals("usemtl")) {
+          reader.nextToken();
+          int id = MaterialLibrary.lookup(library, reader.tokenString(), mesh.getMaterialUses());
+          if (id >= 0) {
+            current_material = id;
           }
+        } else if (reader.tokenEquals("vt") || reader.tokenEquals("o") || reader.tokenEquals("g")) {
+          // Texture coordinates and object/group names aren't used
+        } else {
+          // unrecognized symbol, ignore
+          System.err.printf("Unrecognized symbol '%s' in '%s'\n\tLine %d\n", reader.tokenString(), fname, reader.getLineNumber());
         }
       }
-      fReader.close();
-      // Convert the vertex sets to matrices
-      newObject.verticesMatrix = pointSetToMatrix(newObject.vertices);
-      newObject.vertexNormalsMatrix = pointSetToMatrix(newObject.vertex_normals);
-
       return;
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       System.err.printf("The file '%s' does not exist\n", fname);
       System.err.println(e);
       newObject = null;
@@ -170,25 +157,30 @@ public class ObjectModel {
   }
 
   /**
-   * | x ... 0 |
-   * | y ... 0 |
-   * | z ... 0 |
-   * | 0 ... 1 |
+   * Checks the first count indices are in [0, size), or -1 ("none") too if noneAllowed
    */
-  private static SimpleMatrix pointSetToMatrix(List<Point> PointSet) {
-    // Columns are each vertex, rows are x,y,z
-    double[][] data = new double[4][PointSet.size()];
-    int i = 0;
-    for (Point t : PointSet) {
-      // Init the x, y, and z coordinates
-      data[0][i] = t.x;
-      data[1][i] = t.y;
-      data[2][i] = t.z;
-      data[3][i] = 1;
-      // maybe add an m for homogenous coordinates?
-      i++;
+  private static boolean indicesInRange (int [] indices, int count, int size, boolean noneAllowed) {
+    int lowest = noneAllowed ? -1 : 0;
+    for (int k = 0; k < count; k++) {
+      if (indices[k] < lowest || indices[k] >= size) {
+        return false;
+      }
     }
-    return new SimpleMatrix(data);
+    return true;
+  }
+
+  /**
+   * Turns a 1 indexed (or negative, relative to the end) obj index into a 0 indexed one.
+   * 0 isn't a valid obj index and comes back as Integer.MIN_VALUE so it never passes indicesInRange.
+   */
+  private static int resolveIndex (int index, int count) {
+    if (index == 0) {
+      return Integer.MIN_VALUE;
+    }
+    if (index < 0) {
+      return count + index;
+    }
+    return index - 1;
   }
 
   /**
@@ -202,11 +194,9 @@ public class ObjectModel {
     outputWriter.println("# Modified files written by a cs410 class project");
     outputWriter.println("# Author -- Brandt Reutimann");
     // Write the vertices out
-    for (int i = 0; i < vertices.size(); i++) {
-      double x = verticesMatrix.get(0, i);
-      double y = verticesMatrix.get(1, i);
-      double z = verticesMatrix.get(2, i);
-      outputWriter.printf("v %.6f %.6f %.6f\n",x,y,z);
+    for (int i = 0; i < mesh.getVertexCount(); i++) {
+      Point p = mesh.getVertex(i);
+      outputWriter.printf("v %.6f %.6f %.6f\n", p.x, p.y, p.z);
     }
     // write the vertex normals out
     // for (Point p : vertex_normals) {
@@ -215,25 +205,40 @@ public class ObjectModel {
     // write out the smoothing
     // outputWriter.printf("%s\n", tempSaveSmoothing);
     // Write out the faces
-    for (Face f : faces) {
-      outputWriter.printf("f %d %d %d\n", f.vertexIndices[0], f.vertexIndices[1], f.vertexIndices[2]);
+    for (int t = 0; t < mesh.getTriangleCount(); t++) {
+      outputWriter.printf("f %d %d %d\n", mesh.indices[3 * t] + 1, mesh.indices[3 * t + 1] + 1, mesh.indices[3 * t + 2] + 1);
     }
     outputWriter.close();
   }
 
+  /**
+   * | x ... 0 |
+   * | y ... 0 |
+   * | z ... 0 |
+   * | 1 ... 1 |
+   * Builds the 4 x k homogenous matrix of the vertices, for the Translator to work on
+   */
   public SimpleMatrix getVerticesMatrix () {
-    return this.verticesMatrix;
-  }
-
-  public void setVerticesMatrix (SimpleMatrix toSet) {
-    this.verticesMatrix = toSet;
+    // Columns are each vertex, rows are x,y,z
+    double[][] data = new double[4][mesh.getVertexCount()];
+    for (int i = 0; i < mesh.getVertexCount(); i++) {
+      data[0][i] = mesh.positions[3 * i];
+      data[1][i] = mesh.positions[3 * i + 1];
+      data[2][i] = mesh.positions[3 * i + 2];
+      data[3][i] = 1;
+    }
+    return new SimpleMatrix(data);
   }
 
-  public List<Face> getFaces() {
-    return this.faces;
+  public Mesh getMesh() {
+    return this.mesh;
   }
 
   public String getName () {
     return name;
   }
+
+  public List<String> getMaterialFiles () {
+    return materialFiles;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,262 @@
+import java.util.Arrays;
+import java.util.List;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Walks the BVH with a packet of rays at once using the (incubating) Java Vector API.
+ * Every box and primitive is tested against all of the rays of the packet in one go, one ray per lane,
+ * which pays off for primary rays of neighbouring pixels since they nearly always visit the same nodes.
+ *
+ * Placed instances are entered one ray at a time.
+ * The packet falls back to the normal one ray at a time walk when it stops being coherent:
+ *  - rays heading into different octants are traced on their own from the start
+ *  - once only one ray of the packet is still in a subtree, that ray walks the rest of it on its own
+ *
+ * Whenever the packet finds a closer hit for a ray, the ray re-tests that primitive itself to record it,
+ * so the hit each ray ends up with is exactly what BVH.closestHit records.
+ *
+ * Needs --add-modules jdk.incubator.vector when compiling and running.
+ */
+class PacketTracer {
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // How many rays go in a packet, 4 with AVX2 and 8 with AVX-512
+    static final int LANES = SPECIES.length();
+
+    private BVH bvh;
+    private Ray [] lanes = new Ray [LANES];
+    private double [] ox = new double [LANES], oy = new double [LANES], oz = new double [LANES];
+    private double [] dx = new double [LANES], dy = new double [LANES], dz = new double [LANES];
+    private double [] invX = new double [LANES], invY = new double [LANES], invZ = new double [LANES];
+    // Closest hit found so far for each lane, -1 for unused lanes so nothing can ever beat it
+    private double [] best = new double [LANES];
+    private int [] nodeStack = new int [64];
+    private long [] maskStack = new long [64];
+
+    PacketTracer (BVH bvh) {
+        this.bvh = bvh;
+    }
+
+    /**
+     * Finds the closest hit for rays[queue[start]] ... rays[queue[start + count - 1]], count is at most LANES.
+     * Each ray records its hit just like BVH.closestHit.
+     */
+    void closestHits (Ray [] rays, int [] queue, int start, int count) {
+        long active = 0;
+        boolean coherent = true;
+        int octant = octant(rays[queue[start]]);
+        for (int k = 0; k < LANES; k++) {
+            if (k < count) {
+                Ray r = rays[queue[start + k]];
+                lanes[k] = r;
+                ox[k] = r.ox; oy[k] = r.oy; oz[k] = r.oz;
+                dx[k] = r.dx; dy[k] = r.dy; dz[k] = r.dz;
+                best[k] = r.getClosestDist();
+                active |= 1L << k;
+                coherent &= octant(r) == octant;
+            } else {
+                lanes[k] = null;
+                ox[k] = oy[k] = oz[k] = 0;
+                dx[k] = dy[k] = dz[k] = 1;
+                best[k] = -1;
+            }
+            invX[k] = 1 / dx[k];
+            invY[k] = 1 / dy[k];
+            invZ[k] = 1 / dz[k];
+        }
+        if (!coherent || count == 1 || bvh.isEmpty()) {
+            for (int k = 0; k < count; k++) {
+                bvh.closestHit(lanes[k]);
+            }
+            return;
+        }
+        traverse(active);
+    }
+
+    private static int octant (Ray r) {
+        return (r.dx < 0 ? 1 : 0) | (r.dy < 0 ? 2 : 0) | (r.dz < 0 ? 4 : 0);
+    }
+
+    private void traverse (long active) {
+        int [] nodeInfo = bvh.nodeInfo;
+        int [] primIndex = bvh.primIndex;
+        int faceCount = bvh.faceCount;
+        List<Sphere> spheres = bvh.spheres;
+        // The first ray picks which child looks nearer
+        int lead = Long.numberOfTrailingZeros(active);
+        int top = 0;
+        nodeStack[top] = 0;
+        maskStack[top++] = active;
+        while (top > 0) {
+            int node = nodeStack[--top];
+            long mask = hitsBox(node, maskStack[top]);
+            if (mask == 0) {
+                continue;
+            }
+            if (Long.bitCount(mask) == 1) {
+                // Only one ray left in here, it's quicker on its own
+                int k = Long.numberOfTrailingZeros(mask);
+                bvh.closestHit(lanes[k], node);
+                best[k] = lanes[k].getClosestDist();
+                continue;
+            }
+            int offset = nodeInfo[2 * node];
+            int count = nodeInfo[2 * node + 1];
+            if (count > 0) {
+                for (int i = offset; i < offset + count; i++) {
+                    int p = primIndex[i];
+                    if (p < faceCount) {
+                        long hits = triangleHits(p, mask);
+                        while (hits != 0) {
+                            int k = Long.numberOfTrailingZeros(hits);
+                            hits &= hits - 1;
+                            lanes[k].intersectTriangle(bvh.mesh, p);
+                            best[k] = lanes[k].getClosestDist();
+                        }
+                    } else if (p >= bvh.sphereEnd) {
+                        // Each ray goes into the instance on its own
+                        Instance instance = bvh.instances.get(p - bvh.sphereEnd);
+                        for (long lanesLeft = mask; lanesLeft != 0; lanesLeft &= lanesLeft - 1) {
+                            int k = Long.numberOfTrailingZeros(lanesLeft);
+                            lanes[k].intersectInstance(instance);
+                            best[k] = lanes[k].getClosestDist();
+                        }
+                    } else {
+                        Sphere s = spheres.get(p - faceCount);
+                        long hits = sphereHits(s, mask);
+                        while (hits != 0) {
+                            int k = Long.numberOfTrailingZeros(hits);
+                            hits &= hits - 1;
+                            lanes[k].intersectSphere(s);
+                            best[k] = lanes[k].getClosestDist();
+                        }
+                    }
+                }
+            } else {
+                int near = offset, far = offset + 1;
+                if (centerAlong(offset + 1, lead) < centerAlong(offset, lead)) {
+                    near = offset + 1;
+                    far = offset;
+                }
+                if (top + 2 > nodeStack.length) {
+                    nodeStack = Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+                    maskStack = Arrays.copyOf(maskStack, 2 * maskStack.length);
+                }
+                nodeStack[top] = far;
+                maskStack[top++] = mask;
+                nodeStack[top] = near;
+                maskStack[top++] = mask;
+            }
+        }
+    }
+
+    private double centerAlong (int node, int k) {
+        double [] bounds = bvh.bounds;
+        int b = 6 * node;
+        return (bounds[b] + bounds[b + 3]) * dx[k]
+             + (bounds[b + 1] + bounds[b + 4]) * dy[k]
+             + (bounds[b + 2] + bounds[b + 5]) * dz[k];
+    }
+
+    /**
+     * The slab test of BVH.hitsBox for every lane, returns the lanes of mask whose ray passes through the box
+     */
+    private long hitsBox (int node, long mask) {
+        double [] bounds = bvh.bounds;
+        int b = 6 * node;
+        DoubleVector tMin = DoubleVector.zero(SPECIES);
+        DoubleVector tMax = DoubleVector.fromArray(SPECIES, best, 0);
+        DoubleVector o = DoubleVector.fromArray(SPECIES, ox, 0);
+        DoubleVector inv = DoubleVector.fromArray(SPECIES, invX, 0);
+        DoubleVector t0 = o.neg().add(bounds[b]).mul(inv);
+        DoubleVector t1 = o.neg().add(bounds[b + 3]).mul(inv);
+        DoubleVector lo = t0.min(t1), hi = t0.max(t1);
+        tMin = tMin.blend(lo, lo.compare(VectorOperators.GT, tMin));
+        tMax = tMax.blend(hi, hi.compare(VectorOperators.LT, tMax));
+        o = DoubleVector.fromArray(SPECIES, oy, 0);
+        inv = DoubleVector.fromArray(SPECIES, invY, 0);
+        t0 = o.neg().add(bounds[b + 1]).mul(inv);
+        t1 = o.neg().add(bounds[b + 4]).mul(inv);
+        lo = t0.min(t1);
+        hi = t0.max(t1);
+        tMin = tMin.blend(lo, lo.compare(VectorOperators.GT, tMin));
+        tMax = tMax.blend(hi, hi.compare(VectorOperators.LT, tMax));
+        o = DoubleVector.fromArray(SPECIES, oz, 0);
+        inv = DoubleVector.fromArray(SPECIES, invZ, 0);
+        t0 = o.neg().add(bounds[b + 2]).mul(inv);
+        t1 = o.neg().add(bounds[b + 5]).mul(inv);
+        lo = t0.min(t1);
+        hi = t0.max(t1);
+        tMin = tMin.blend(lo, lo.compare(VectorOperators.GT, tMin));
+        tMax = tMax.blend(hi, hi.compare(VectorOperators.LT, tMax));
+        return tMin.compare(VectorOperators.LE, tMax).toLong() & mask;
+    }
+
+    /**
+     * Moller-Trumbore from Ray.intersectTriangle for every lane against one triangle.
+     * Returns the lanes of mask that hit it closer than their best so far.
+     */
+    private long triangleHits (int tri, long mask) {
+        Mesh mesh = bvh.mesh;
+        double [] pos = mesh.positions;
+        int a = 3 * mesh.indices[3 * tri];
+        int b = 3 * mesh.indices[3 * tri + 1];
+        int c = 3 * mesh.indices[3 * tri + 2];
+        double ax = pos[a], ay = pos[a + 1], az = pos[a + 2];
+        double e1x = pos[b] - ax, e1y = pos[b + 1] - ay, e1z = pos[b + 2] - az;
+        double e2x = pos[c] - ax, e2y = pos[c + 1] - ay, e2z = pos[c + 2] - az;
+        DoubleVector vdx = DoubleVector.fromArray(SPECIES, dx, 0);
+        DoubleVector vdy = DoubleVector.fromArray(SPECIES, dy, 0);
+        DoubleVector vdz = DoubleVector.fromArray(SPECIES, dz, 0);
+        // P = d x e2
+        DoubleVector px = vdy.mul(e2z).sub(vdz.mul(e2y));
+        DoubleVector py = vdz.mul(e2x).sub(vdx.mul(e2z));
+        DoubleVector pz = vdx.mul(e2y).sub(vdy.mul(e2x));
+        DoubleVector det = px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z));
+        DoubleVector invDet = DoubleVector.broadcast(SPECIES, 1).div(det);
+        // T = origin - A
+        DoubleVector tx = DoubleVector.fromArray(SPECIES, ox, 0).sub(ax);
+        DoubleVector ty = DoubleVector.fromArray(SPECIES, oy, 0).sub(ay);
+        DoubleVector tz = DoubleVector.fromArray(SPECIES, oz, 0).sub(az);
+        DoubleVector beta = tx.mul(px).add(ty.mul(py)).add(tz.mul(pz)).mul(invDet);
+        // Q = T x e1
+        DoubleVector qx = ty.mul(e1z).sub(tz.mul(e1y));
+        DoubleVector qy = tz.mul(e1x).sub(tx.mul(e1z));
+        DoubleVector qz = tx.mul(e1y).sub(ty.mul(e1x));
+        DoubleVector gamma = vdx.mul(qx).add(vdy.mul(qy)).add(vdz.mul(qz)).mul(invDet);
+        DoubleVector t = qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)).mul(invDet);
+        long hits = det.compare(VectorOperators.NE, 0)
+                .and(beta.compare(VectorOperators.GE, 0))
+                .and(beta.compare(VectorOperators.LE, 1))
+                .and(gamma.compare(VectorOperators.GE, 0))
+                .and(beta.add(gamma).compare(VectorOperators.LE, 1))
+                .and(t.compare(VectorOperators.GT, 0.0001))
+                .and(t.compare(VectorOperators.LT, DoubleVector.fromArray(SPECIES, best, 0)))
+                .toLong();
+        return hits & mask;
+    }
+
+    /**
+     * The sphere test from Ray.intersectSphere for every lane.
+     * Returns the lanes of mask that hit it closer than their best so far.
+     */
+    private long sphereHits (Sphere sphere, long mask) {
+        Point center = sphere.getCenter();
+        DoubleVector cx = DoubleVector.fromArray(SPECIES, ox, 0).neg().add(center.x);
+        DoubleVector cy = DoubleVector.fromArray(SPECIES, oy, 0).neg().add(center.y);
+        DoubleVector cz = DoubleVector.fromArray(SPECIES, oz, 0).neg().add(center.z);
+        DoubleVector v = DoubleVector.fromArray(SPECIES, dx, 0).mul(cx)
+                .add(DoubleVector.fromArray(SPECIES, dy, 0).mul(cy))
+                .add(DoubleVector.fromArray(SPECIES, dz, 0).mul(cz));
+        DoubleVector cSquared = cx.mul(cx).add(cy.mul(cy)).add(cz.mul(cz));
+        double r = sphere.getRadius();
+        DoubleVector dSquared = cSquared.sub(v.mul(v)).neg().add(r * r);
+        DoubleVector t = v.sub(dSquared.sqrt());
+        long hits = dSquared.compare(VectorOperators.GE, 0)
+                .and(t.compare(VectorOperators.GT, 0.0001))
+                .and(t.compare(VectorOperators.LT, DoubleVector.fromArray(SPECIES, best, 0)))
+                .toLong();
+        return hits & mask;
+    }
+}
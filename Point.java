@@ -45,13 +45,13 @@ public class Point {
 			return false;
 		}
 		Point other = (Point) obj;
-		if (x - other.x > 0.001) {
+		if (Math.abs(x - other.x) > 0.001) {
 			return false;
 		}
-		if (y - other.y > 0.001) {
+		if (Math.abs(y - other.y) > 0.001) {
 			return false;
 		}
-		if (z - other.z > 0.001) {
+		if (Math.abs(z - other.z) > 0.001) {
 			return false;
 		}
 		return true;
@@ -0,0 +1,127 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Renders a scene in passes that get finer and finer, writing a preview of the image so far
+ * out to a file along the way so you can see what the camera is looking at early on.
+ *
+ * The first pass renders one pixel in every 8 x 8 block, then one in every 4 x 4, 2 x 2 and
+ * finally the rest. No pixel is rendered twice and each is rendered exactly like a normal render
+ * would, so the final image is identical to Scene.generateImage.
+ *
+ * After the first pass a preview is written every interval, in the middle of a pass too. Tiles the
+ * pass has finished show up at its finer grid and the rest at the grid of the pass before.
+ */
+public class ProgressiveRenderer {
+    // Grid spacing of each pass, each one has to divide the one before it
+    public static final int [] PASSES = {8, 4, 2, 1};
+
+    private TileRenderer renderer;
+    private String previewFname;
+    private long intervalNanos;
+    private boolean binary;
+
+    /**
+     * Previews are written to previewFname after the first pass, and then every intervalMillis
+     * until the image is finished. 0 only writes them between passes.
+     */
+    public ProgressiveRenderer (TileRenderer renderer, String previewFname, long intervalMillis, boolean binary) {
+        this.renderer = renderer;
+        this.previewFname = previewFname;
+        this.intervalNanos = intervalMillis * 1000000L;
+        this.binary = binary;
+    }
+
+    /**
+     * The tiles of the current pass that are done
+     */
+    private static class PassProgress implements TileRenderer.TileListener {
+        private List<Tile> finished = new ArrayList<Tile>();
+
+        public synchronized void finish (Tile tile) {
+            finished.add(tile);
+        }
+
+        synchronized List<Tile> getFinished () {
+            return new ArrayList<Tile>(finished);
+        }
+    }
+
+    public Image render (Scene scene, int width, int height, int depth) {
+        long start = scene.startFrame();
+        Image img = Scene.newImage(width, height);
+        long lastPreview = 0;
+        int skip = 0;
+        for (int pass = 0; pass < PASSES.length; pass++) {
+            int step = PASSES[pass];
+            PassProgress progress = new PassProgress();
+            ForkJoinTask<Void> task = renderer.start(scene, img, width, height, depth, step, skip, progress);
+            // The first pass has nothing to show until it's done
+            boolean timed = pass > 0 && intervalNanos > 0;
+            while (!finish(task, timed ? Math.max(0, lastPreview + intervalNanos - System.nanoTime()) : Long.MAX_VALUE)) {
+                System.out.printf("Writing preview part way through the %dx%d pass to '%s'...\n", step, step, previewFname);
+                Image preview = img.blockFill(skip);
+                for (Tile tile : progress.getFinished()) {
+                    img.blockFill(step, tile, preview);
+                }
+                writePreview(preview);
+                lastPreview = System.nanoTime();
+            }
+            skip = step;
+            boolean last = pass == PASSES.length - 1;
+            if (!last && (pass == 0 || System.nanoTime() - lastPreview >= intervalNanos)) {
+                System.out.printf("Writing %dx%d preview to '%s'...\n", step, step, previewFname);
+                writePreview(img.blockFill(step));
+                lastPreview = System.nanoTime();
+            }
+        }
+        scene.endFrame(start);
+        return img;
+    }
+
+    /**
+     * Waits up to nanos for a pass, returning whether it's done
+     */
+    private static boolean finish (ForkJoinTask<Void> task, long nanos) {
+        try {
+            task.get(nanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes the preview next to the output file and moves it into place,
+     * so anything watching the file never sees half of an image
+     */
+    private void writePreview (Image preview) {
+        Path target = Paths.get(previewFname);
+        Path part = Paths.get(previewFname + ".part");
+        preview.writeToFile(part.toString(), binary);
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            try {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception e2) {
+                System.err.println("Failed to write preview image");
+                System.err.println(e2);
+            }
+        }
+    }
+}
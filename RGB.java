@@ -40,6 +40,45 @@ public class RGB {
         return new RGB (r,g,b);
     }
 
+    public RGB set (double r, double g, double b) {
+        this.red = r;
+        this.green = g;
+        this.blue = b;
+        return this;
+    }
+
+    public RGB set (RGB other) {
+        return set(other.red, other.green, other.blue);
+    }
+
+    /**
+     * Sets this color to the pairwise product of a and b
+     */
+    public RGB setPairwiseProduct (RGB a, RGB b) {
+        return set(a.red * b.red, a.green * b.green, a.blue * b.blue);
+    }
+
+    /**
+     * Multiplies this color pairwise by other
+     */
+    public RGB pairwiseProductInPlace (RGB other) {
+        return set(this.red * other.red, this.green * other.green, this.blue * other.blue);
+    }
+
+    /**
+     * Adds the pairwise product of a and b scaled by s onto this color
+     * Same as this.add(a.pairwiseProduct(b).scale(s)) without the garbage
+     */
+    public RGB addScaledProduct (RGB a, RGB b, double s) {
+        return set(this.red + a.red * b.red * s,
+                   this.green + a.green * b.green * s,
+                   this.blue + a.blue * b.blue * s);
+    }
+
+    public RGB addInPlace (RGB other) {
+        return set(this.red + other.red, this.green + other.green, this.blue + other.blue);
+    }
+
     public String toString () {
         return String.format ("Red %.2f, Green %.2f, Blue %.2f", red, green, blue);
     }
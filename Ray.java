@@ -1,25 +1,77 @@
 import java.util.Arrays;
 import java.util.List;
-import org.ejml.simple.SimpleMatrix;
 
 public class Ray {
-    private Point origin;
-    private Vector direction;
+    // P + Dt, the direction is always kept unit length
+    double ox, oy, oz;
+    double dx, dy, dz;
     private double closestDist;
-    private double closestPt;
-    private Object closestObj;
+    // What the ray hit: either a triangle of closestMesh or closestSphere
+    private Mesh closestMesh;
+    private int closestTriangle;
+    private Sphere closestSphere;
+    // Set when the closest triangle belongs to a placed instance, closestMesh is then in object space
+    private Instance closestInstance;
+    // Stack for walking the BVH, kept with the ray so traversal doesn't allocate
+    int [] stack = new int [64];
+    // How many primitives this ray has been tested against, collected into RenderStats by the scene
+    long triangleTests, sphereTests;
+    // The ray moved into an instance's object space, made the first time this ray meets an instance
+    private Ray objectRay;
+
+    /**
+     * Makes an empty ray to be filled in later with set
+     */
+    public Ray () {
+        closestDist = Double.MAX_VALUE;
+        closestTriangle = -1;
+    }
 
     public Ray (Point p, Vector d) {
-        this.origin = p;
-        this.direction = d;
-        // Make the direction and normalization the same values to avoid mistakes
-        // We are inforcing that the D vector in P + Dt must be unit length,
-        // Having an endpoint for it is rather meaningless
-        this.direction.direction = this.direction.normalized;
-        this.direction.magnitude = 1;
+        set(p.x, p.y, p.z, d.x, d.y, d.z);
+    }
+
+    /**
+     * Points this ray from the origin along the direction and forgets anything it hit before.
+     * We are inforcing that the D vector in P + Dt must be unit length,
+     * Having an endpoint for it is rather meaningless
+     */
+    public Ray set (double ox, double oy, double oz, double dx, double dy, double dz) {
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (magnitude == 0) {
+            this.dx = 0;
+            this.dy = 0;
+            this.dz = 0;
+        } else {
+            this.dx = dx / magnitude;
+            this.dy = dy / magnitude;
+            this.dz = dz / magnitude;
+        }
         // Use these variables for ray tracing intersections 
         closestDist = Double.MAX_VALUE;
-        closestObj = null;
+        closestMesh = null;
+        closestTriangle = -1;
+        closestSphere = null;
+        closestInstance = null;
+        return this;
+    }
+
+    public Ray set (Point p, Vector d) {
+        return set(p.x, p.y, p.z, d.x, d.y, d.z);
+    }
+
+    /**
+     * Points this ray from tail towards head and returns the distance between them
+     */
+    public double setBetween (Point tail, Point head) {
+        double x = head.x - tail.x;
+        double y = head.y - tail.y;
+        double z = head.z - tail.z;
+        set(tail.x, tail.y, tail.z, x, y, z);
+        return Math.sqrt(x * x + y * y + z * z);
     }
 
     /**
@@ -27,58 +79,81 @@ public class Ray {
      * Return a point that denotes the end of the ray.
      */
     public Point scale (double t) {
-        double x, y, z;
-        x = t * direction.normalized[0] + origin.x;
-        y = t * direction.normalized[1] + origin.y;
-        z = t * direction.normalized[2] + origin.z;
-        return new Point(x, y, z);
+        return scale(t, new Point(0, 0, 0));
+    }
+
+    /**
+     * Same as scale, but writes the end of the ray into out
+     */
+    public Point scale (double t, Point out) {
+        out.x = t * dx + ox;
+        out.y = t * dy + oy;
+        out.z = t * dz + oz;
+        return out;
     }
 
     public String toString () {
-        return "Point: "     + origin.toString() + "\n" +
-               "Direction: " + Arrays.toString(direction.normalized);
+        return "Point: "     + getOrigin().toString() + "\n" +
+               "Direction: " + Arrays.toString(new double [] {dx, dy, dz});
     }
 
     public Point getOrigin () {
-        return origin;
+        return new Point(ox, oy, oz);
     }
 
     public Vector getDirection () {
-        return direction;
+        return new Vector(dx, dy, dz);
     }
 
     public Point getClosestPoint () {
         return scale (closestDist);
     }
 
+    public Point getClosestPoint (Point out) {
+        return scale (closestDist, out);
+    }
+
     public double getClosestDist () {
         return closestDist;
     }
 
-    public Object getClosestObj () {
-        return closestObj;
+    /**
+     * Returns true if the ray has recorded a hit
+     */
+    public boolean hasHit () {
+        return closestSphere != null || closestTriangle >= 0;
+    }
+
+    /**
+     * Returns the material of the closest object the ray hit
+     */
+    public Material getClosestMaterial () {
+        if (closestSphere != null) {
+            return closestSphere.getMaterial();
+        }
+        return closestMesh.getMaterial(closestTriangle);
     }
 
     public double dotProduct (Ray other) {
-        return this.getDirection().dotProduct(other.getDirection());
+        return this.dx * other.dx + this.dy * other.dy + this.dz * other.dz;
     }
 
     /**
      * Returns a copy of this Ray with the direction backwards
      */
     public Ray getReverse () {
-        return new Ray (this.origin, this.direction.getReverse());
+        return new Ray().set(ox, oy, oz, -1 * dx, -1 * dy, -1 * dz);
     }
 
     /**
      * Tests this ray for the closest collision in the scene.
      * Returns the surface normal for the closest surface to the ray.
      */
-    public Vector rayTest (List<Sphere> spheres, List<Face> faces) {
+    public Vector rayTest (List<Sphere> spheres, Mesh mesh) {
         boolean rayCollided = false;
         // Try to intersect all faces :/ bleh this is gonna take a long ass time .... 
-        for (Face f : faces) {
-            if (intersectTriangle(f) > 0 ){
+        for (int f = 0; f < mesh.getTriangleCount(); f++) {
+            if (intersectTriangle(mesh, f) > 0 ){
                 rayCollided = true;
             }
         }
@@ -88,82 +163,165 @@ public class Ray {
                 rayCollided = true;
             }
         }
-        Vector surfaceNormal = null;        
-        // If we got a collision calculate the normal
-        if (rayCollided) {
-            Point surfacePt = getClosestPoint();
-            Object closestObj = getClosestObj();
-            // Color the closest object
-            if (closestObj.getClass() == Sphere.class) {
-                // Get normal for sphere
-                Sphere s = (Sphere) closestObj;
-                surfaceNormal = s.getNormal(surfacePt);
-            } else {
-                // Get normal for a face
-                Face face = (Face) closestObj;
-                surfaceNormal = face.getNormal();
-            }
+        if (rayCollided && hasHit()) {
+            return closestNormal();
         }
-        return surfaceNormal;
+        return null;
+    }
+
+    /**
+     * Tests this ray for the closest collision in the scene by walking the scene's BVH.
+     * Returns the surface normal for the closest surface to the ray.
+     */
+    public Vector rayTest (BVH bvh) {
+        if (bvh.closestHit(this)) {
+            return closestNormal();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the surface normal of the closest object this ray has hit
+     */
+    private Vector closestNormal () {
+        return closestNormal(new Vector(0, 0, 0));
+    }
+
+    /**
+     * Writes the unit surface normal of the closest object this ray has hit into out
+     */
+    public Vector closestNormal (Vector out) {
+        // Color the closest object
+        if (closestSphere != null) {
+            // Get normal for sphere
+            return closestSphere.getNormal(closestDist * dx + ox, closestDist * dy + oy, closestDist * dz + oz, out);
+        }
+        // Get normal for a face
+        if (closestInstance != null) {
+            return closestInstance.normalToWorld(closestMesh.getNormal(closestTriangle, out));
+        }
+        return closestMesh.getNormal(closestTriangle, out);
     }
 
     /**
      * Performs ray triangle intersection and returns the distance from the pixel to the triangle.
+     * Solves o + t * d = A + beta * (B - A) + gamma * (C - A) in closed form (Moller-Trumbore),
+     * reading the vertices straight out of the packed mesh arrays, so nothing is allocated per test.
+     * https://www.scratchapixel.com/lessons/3d-basic-rendering/ray-tracing-rendering-a-triangle/moller-trumbore-ray-triangle-intersection
      */
-    public double intersectTriangle (Face face) {
-        Ray ray = this;
-        // Before solving check to see if the triangle and ray are parallel
-        Vector AC = new Vector (face.A, face.C);
-        Vector AB = new Vector (face.A, face.B);
-        // If the ray direction is orthogonal to the normal vector of the plane defined by vectors
-        // AB and AC, then the ray is parallel to the triangle
-        if (AC.crossProduct(AB).dotProduct(ray.getDirection()) != 0) {
-            // Solve the matrix equation
-            // Mx = Y
-            SimpleMatrix Mm = generateM (face, ray.getDirection());
-            SimpleMatrix Ym = generateY (face, ray.getOrigin());
-            /**
-             * The solution matrix is in the form
-             * | B | - B is beta
-             * | Y | - Y is gamma
-             * | t | - t is the distance to the face plane
-             */
-            SimpleMatrix solution = Mm.invert().mult(Ym);
-            double beta = solution.get(0,0);
-            double gamma = solution.get(1,0);
-            double t = solution.get(2,0);
-            // If B & Y <= 0, t > 0, and beta + gamma <= 1
-            // Then the ray intersects the triangle
-            if (beta >= 0 && gamma >= 0 && t > 0.0001) {
-                if ((beta + gamma <= 1)) {
+    public double intersectTriangle (Mesh mesh, int tri) {
+        triangleTests++;
+        double [] pos = mesh.positions;
+        int a = 3 * mesh.indices[3 * tri];
+        int b = 3 * mesh.indices[3 * tri + 1];
+        int c = 3 * mesh.indices[3 * tri + 2];
+        double ax = pos[a], ay = pos[a + 1], az = pos[a + 2];
+        // Edges B - A and C - A
+        double e1x = pos[b] - ax, e1y = pos[b + 1] - ay, e1z = pos[b + 2] - az;
+        double e2x = pos[c] - ax, e2y = pos[c + 1] - ay, e2z = pos[c + 2] - az;
+        // P = d x e2
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+        double det = e1x * px + e1y * py + e1z * pz;
+        // If the determinant is 0 the ray is parallel to the triangle
+        if (det != 0) {
+            double invDet = 1 / det;
+            // T = origin - A
+            double tx = ox - ax;
+            double ty = oy - ay;
+            double tz = oz - az;
+            double beta = (tx * px + ty * py + tz * pz) * invDet;
+            if (beta >= 0 && beta <= 1) {
+                // Q = T x e1
+                double qx = ty * e1z - tz * e1y;
+                double qy = tz * e1x - tx * e1z;
+                double qz = tx * e1y - ty * e1x;
+                double gamma = (dx * qx + dy * qy + dz * qz) * invDet;
+                double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+                // If B & Y >= 0, t > 0, and beta + gamma <= 1
+                // Then the ray intersects the triangle
+                if (gamma >= 0 && beta + gamma <= 1 && t > 0.0001) {
                     // If t is closer than any other obj set t to the value
-                    if (t < ray.closestDist) {
-                        ray.closestDist = t;
-                        ray.closestObj = face;
+                    if (t < closestDist) {
+                        closestDist = t;
+                        closestMesh = mesh;
+                        closestTriangle = tri;
+                        closestSphere = null;
+                        closestInstance = null;
                     }
                     return t;
                 }
             }
         }
-    // We were unable to find an intersection
-    // Return a negative 1 so the calling functions knows we didn't find anything
-    return -1;
+        // We were unable to find an intersection
+        // Return a negative 1 so the calling functions knows we didn't find anything
+        return -1;
     }
     
+    /**
+     * Tests this ray against a placed model by moving it into the model's object space and walking
+     * the model's BVH. Returns the distance to the closest triangle it hits in world space, or -1.
+     */
+    public double intersectInstance (Instance instance) {
+        Ray local = objectRay();
+        double scale = instance.toObject(this, local);
+        // Only look for hits closer than the one we already have
+        local.closestDist = closestDist == Double.MAX_VALUE ? Double.MAX_VALUE : closestDist * scale;
+        boolean hit = instance.bvh.closestHit(local);
+        triangleTests += local.triangleTests;
+        local.triangleTests = 0;
+        if (!hit) {
+            return -1;
+        }
+        double t = local.closestDist / scale;
+        if (t < closestDist) {
+            closestDist = t;
+            closestMesh = local.closestMesh;
+            closestTriangle = local.closestTriangle;
+            closestSphere = null;
+            closestInstance = instance;
+        }
+        return t;
+    }
+
+    /**
+     * Returns true if anything in the placed model is hit along this ray closer than maxDist
+     */
+    public boolean instanceBlocks (Instance instance, double maxDist) {
+        Ray local = objectRay();
+        double scale = instance.toObject(this, local);
+        boolean blocked = instance.bvh.isOccluded(local, maxDist * scale);
+        triangleTests += local.triangleTests;
+        local.triangleTests = 0;
+        return blocked;
+    }
+
+    private Ray objectRay () {
+        if (objectRay == null) {
+            objectRay = new Ray();
+        }
+        return objectRay;
+    }
+
     /**
      * Performs ray sphere intersection and returns the distance from the pixel to the sphere.
      * You can read more about this method in the following link.
      * https://www.scratchapixel.com/lessons/3d-basic-rendering/minimal-ray-tracer-rendering-simple-shapes/ray-sphere-intersection
      */
     public double intersectSphere (Sphere sphere) {
+        sphereTests++;
         Ray ray = this;
+        Point center = sphere.getCenter();
         // Create a vector from the the eye point to the center of the sphere
-        Vector rayOriginToCenter = new Vector (ray.getOrigin(), sphere.getCenter());
+        double cx = center.x - ox;
+        double cy = center.y - oy;
+        double cz = center.z - oz;
         // Determine the length of v by using the dot product
-        double v = ray.getDirection().dotProduct(rayOriginToCenter);
+        double v = dx * cx + dy * cy + dz * cz;
         double vSquared = v * v;
         // The length of c is the magnitude of ray origin to the center of the sphere
-        double cSquared = rayOriginToCenter.dotProduct(rayOriginToCenter);
+        double cSquared = cx * cx + cy * cy + cz * cz;
         // d = sqrt (r^2 - (c^2 - v^2))
         double dSquared = (sphere.getRadius() * sphere.getRadius()) - (cSquared - vSquared);
         // If d == 0 the ray hits the center of the spehere, otherwise if it is greater than 0
@@ -175,7 +333,9 @@ public class Ray {
             // If t is closer than any other obj set t to the value            
             if (t < ray.closestDist && t > 0.0001) {
                 ray.closestDist = t;
-                ray.closestObj = sphere;
+                ray.closestSphere = sphere;
+                ray.closestTriangle = -1;
+                ray.closestInstance = null;
             }
             return t;
         }
@@ -183,42 +343,4 @@ public class Ray {
         return -1;
     }
 
-    /**
-     * Generates the matrix M for a triangle with points A, B, C
-     * To solve the matrix equation Mx = Y
-     * | ax - bx  ax - cx  dx | 
-     * | ay - by  ay - cy  dy |
-     * | az - bz  az - cz  dz |
-     */
-    private SimpleMatrix generateM (Face f, Vector d) {
-        SimpleMatrix M = new SimpleMatrix(3,3);
-        // First row
-        M.set(0,0, (f.A.x - f.B.x));
-        M.set(0,1, (f.A.x - f.C.x));
-        M.set(0,2, d.normalized[0]);
-        // Second row
-        M.set(1,0, (f.A.y - f.B.y));
-        M.set(1,1, (f.A.y - f.C.y));
-        M.set(1,2, d.normalized[1]);
-        // Third row
-        M.set(2,0, (f.A.z - f.B.z));
-        M.set(2,1, (f.A.z - f.C.z));
-        M.set(2,2, d.normalized[2]);
-        return M;
-     }
-
-     /**
-      * Generates the Y matrix in the equation for ray triangle intersection.
-      * | ax - lx |
-      * | ay - ly |
-      * | az - lz |
-      */
-     private SimpleMatrix generateY (Face f, Point l) {
-        SimpleMatrix Y = new SimpleMatrix(3,1);
-        Y.set(0,0, f.A.x - l.x);
-        Y.set(1,0, f.A.y - l.y);
-        Y.set(2,0, f.A.z - l.z);
-        return Y;
-     }
-
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/**
+ * The paths of a tile being traced together as a wavefront, one path per pixel.
+ * Scene intersects every queued ray, then shades all of the hits, then queues up the
+ * reflections for the next level, so each stage runs over the whole batch at once.
+ *
+ * Each path keeps the local color it picked up at every level. They are added up from the
+ * deepest level back to the first, the same order the old recursive shading added them in,
+ * so the pixel comes out bit for bit the same.
+ */
+class RayBatch {
+    Ray [] rays = new Ray [0];
+    // The pixel each path belongs to
+    int [] pixelI = new int [0];
+    int [] pixelJ = new int [0];
+    // Local color of path p at level k is at 3 * (p * levels + k)
+    double [] colors = new double [0];
+    // How many levels of colors path p has
+    int [] lengths = new int [0];
+    boolean [] hit = new boolean [0];
+    // Paths still going, and the ones that will go on to the next level
+    int [] queue = new int [0];
+    int [] next = new int [0];
+    int size, queued, levels;
+    private int [] octantCounts = new int [8];
+
+    /**
+     * Empties the batch for up to capacity paths that go at most depth bounces
+     */
+    void start (int capacity, int depth) {
+        if (rays.length < capacity) {
+            Ray [] grown = new Ray [capacity];
+            System.arraycopy(rays, 0, grown, 0, rays.length);
+            for (int p = rays.length; p < capacity; p++) {
+                grown[p] = new Ray();
+            }
+            rays = grown;
+            pixelI = new int [capacity];
+            pixelJ = new int [capacity];
+            lengths = new int [capacity];
+            hit = new boolean [capacity];
+            queue = new int [capacity];
+            next = new int [capacity];
+        }
+        levels = depth + 1;
+        if (colors.length < 3 * capacity * levels) {
+            colors = new double [3 * capacity * levels];
+        }
+        size = 0;
+        queued = 0;
+    }
+
+    /**
+     * Adds a path for pixel i, j and queues it. Returns its ray to be pointed through the pixel.
+     */
+    Ray add (int i, int j) {
+        int p = size++;
+        pixelI[p] = i;
+        pixelJ[p] = j;
+        lengths[p] = 0;
+        queue[queued++] = p;
+        return rays[p];
+    }
+
+    void setColor (int p, int level, RGB color) {
+        int c = 3 * (p * levels + level);
+        colors[c] = color.red;
+        colors[c + 1] = color.green;
+        colors[c + 2] = color.blue;
+        lengths[p] = level + 1;
+    }
+
+    /**
+     * Makes the count paths in next the new queue, grouped by which octant their ray heads into
+     * so rays going the same way walk the BVH one after the other
+     */
+    void advance (int count) {
+        Arrays.fill(octantCounts, 0);
+        for (int q = 0; q < count; q++) {
+            octantCounts[octant(rays[next[q]])]++;
+        }
+        for (int o = 0, start = 0; o < 8; o++) {
+            int n = octantCounts[o];
+            octantCounts[o] = start;
+            start += n;
+        }
+        for (int q = 0; q < count; q++) {
+            int p = next[q];
+            queue[octantCounts[octant(rays[p])]++] = p;
+        }
+        queued = count;
+    }
+
+    private static int octant (Ray r) {
+        return (r.dx < 0 ? 1 : 0) | (r.dy < 0 ? 2 : 0) | (r.dz < 0 ? 4 : 0);
+    }
+
+    /**
+     * Adds up the colors of path p from the deepest level back up into out
+     */
+    RGB resolve (int p, RGB out) {
+        out.set(0, 0, 0);
+        for (int k = lengths[p] - 1; k >= 0; k--) {
+            int c = 3 * (p * levels + k);
+            out.set(colors[c] + out.red, colors[c + 1] + out.green, colors[c + 2] + out.blue);
+        }
+        return out;
+    }
+
+    /**
+     * Moves the intersection test counts off of every ray in the batch
+     */
+    void collectTests (RenderStats stats) {
+        for (int p = 0; p < size; p++) {
+            stats.collectTests(rays[p]);
+        }
+    }
+}
@@ -1,38 +1,463 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 import org.ejml.simple.SimpleMatrix;
 
 public class Raytracer {
 
     private static final String objPath = "./drivers_models/";
+    // How often a resumed render checkpoints when no interval is given
+    private static final long DEFAULT_CHECKPOINT_SECONDS = 60;
 
     public static void main (String args[]) {
         String driverFname = null; 
         String outputFname = null;
-        if (args.length == 2) {
-            driverFname = args[0];
-            outputFname = args[1];
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean binary = true;
+        boolean printStats = false;
+        String statsFname = null;
+        boolean flatten = false;
+        boolean compile = false;
+        boolean progressive = false;
+        boolean packets = false;
+        long previewMillis = 1000;
+        // Shadow rays per hit in scenes with lots of lights, 0 traces one to every light
+        int lightBudget = 0;
+        // Checkpoints of long renders, off unless an interval is given or a render is resumed
+        long checkpointSeconds = 0;
+        boolean resume = false;
+        // Render straight into a memory mapped output file
+        boolean mapped = false;
+        // Batch of driver files
+        boolean batch = false;
+        String batchList = null;
+        String outDir = ".";
+        // Render daemon
+        boolean daemon = false;
+        boolean submit = false;
+        int port = RenderDaemon.DEFAULT_PORT;
+        int jobs = 1;
+        int queue = 16;
+        long cacheMegabytes = 512;
+        // Tiles spread over worker processes
+        boolean coordinator = false;
+        boolean worker = false;
+        String host = "localhost";
+        int tileSize = RenderCoordinator.DEFAULT_TILE_SIZE;
+        // Pull the options out, whatever is left over are the driver and output files
+        ArrayList<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--p3")) {
+                binary = false;
+            } else if (args[i].equals("--packets")) {
+                packets = true;
+            } else if (args[i].equals("--compile")) {
+                compile = true;
+            } else if (args[i].equals("--flatten")) {
+                flatten = true;
+            } else if (args[i].equals("--progressive")) {
+                progressive = true;
+            } else if (args[i].equals("--preview-interval") && i + 1 < args.length) {
+                previewMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--checkpoint-interval") && i + 1 < args.length) {
+                checkpointSeconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--resume")) {
+                resume = true;
+            } else if (args[i].equals("--mapped")) {
+                mapped = true;
+            } else if (args[i].equals("--light-budget") && i + 1 < args.length) {
+                lightBudget = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--batch")) {
+                batch = true;
+            } else if (args[i].equals("--batch-list") && i + 1 < args.length) {
+                batch = true;
+                batchList = args[++i];
+            } else if (args[i].equals("--out-dir") && i + 1 < args.length) {
+                outDir = args[++i];
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else if (args[i].equals("--submit")) {
+                submit = true;
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--coordinator")) {
+                coordinator = true;
+            } else if (args[i].equals("--worker")) {
+                worker = true;
+            } else if (args[i].equals("--host") && i + 1 < args.length) {
+                host = args[++i];
+            } else if (args[i].equals("--tile-size") && i + 1 < args.length) {
+                tileSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--queue") && i + 1 < args.length) {
+                queue = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache-mb") && i + 1 < args.length) {
+                cacheMegabytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--stats")) {
+                printStats = true;
+            } else if (args[i].equals("--stats-json") && i + 1 < args.length) {
+                statsFname = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (daemon) {
+            runDaemon(threads, jobs, queue, cacheMegabytes, port);
+            return;
+        }
+        if (worker) {
+            if (port == RenderDaemon.DEFAULT_PORT) {
+                port = RenderCoordinator.DEFAULT_PORT;
+            }
+            boolean done = new RenderWorker(threads).work(host, port);
+            System.exit(done ? 0 : 1);
+        }
+        if (batch) {
+            if (progressive || checkpointSeconds > 0 || resume) {
+                System.out.println("--progressive, --checkpoint-interval and --resume don't work with --batch, rendering each frame normally");
+            }
+            if (mapped && !binary) {
+                System.out.println("--mapped only works for plain P6 renders, keeping the images in memory");
+                mapped = false;
+            }
+            runBatch(files, batchList, outDir, threads, binary, packets, flatten, mapped, lightBudget, printStats, statsFname);
+            return;
+        }
+        if (files.size() == 2) {
+            driverFname = files.get(0);
+            outputFname = files.get(1);
         } else {
-            System.err.println("Usage: Raytracer driver.txt driver.ppm");
+            System.err.println("Usage: Raytracer --compile driver.txt scene.snap");
+            System.err.println("       Raytracer --batch [--out-dir dir] [--batch-list jobs.txt] [render options] driver.txt|'driver*.txt' ...");
+            System.err.println("       Raytracer --daemon [--threads n] [--jobs n] [--queue n] [--cache-mb n] [--port n]");
+            System.err.println("       Raytracer --coordinator [--port n] [--tile-size n] [--p3] [--light-budget n] driver.txt|scene.snap driver.ppm");
+            System.err.println("       Raytracer --worker [--host h] [--port n] [--threads n]");
+            System.err.println("       Raytracer --submit [--port n] [--p3] [--packets] [--light-budget n] driver.txt|scene.snap driver.ppm");
+            System.err.println("       Raytracer [--threads n] [--p3] [--packets] [--flatten] [--progressive] [--preview-interval ms] [--checkpoint-interval s] [--resume] [--mapped] [--light-budget n] [--stats] [--stats-json stats.json] driver.txt|scene.snap driver.ppm");
+            System.exit(1);
+        }
+        if (compile) {
+            compileSnapshot(driverFname, outputFname);
+            return;
+        }
+        if (coordinator) {
+            if (port == RenderDaemon.DEFAULT_PORT) {
+                port = RenderCoordinator.DEFAULT_PORT;
+            }
+            runCoordinator(driverFname, outputFname, port, tileSize, binary, lightBudget);
+            return;
+        }
+        if (submit) {
+            // The daemon may have been started somewhere else, so send it full paths
+            boolean done = RenderDaemon.submit(port, new File(driverFname).getAbsolutePath(),
+                    new File(outputFname).getAbsolutePath(), binary, packets, lightBudget);
+            System.exit(done ? 0 : 1);
+        }
+        DriverModel driver;
+        Scene scene;
+        long start = System.nanoTime();
+        if (SceneSnapshot.isSnapshot(driverFname)) {
+            System.out.printf("Opening snapshot '%s'...\n", driverFname);
+            SceneSnapshot snapshot = openSnapshot(driverFname);
+            driver = snapshot.getDriver();
+            scene = snapshot.getScene();
+        } else {
+            // Read the driver file and place all of the objects
+            driver = new DriverModel(driverFname);
+            long driverTime = System.nanoTime() - start;
+            if (driver.cameraModel == null) {
+                System.exit(1);
+            }
+            if (driver.animation != null && driver.animation.getFrameCount() > 1) {
+                if (mapped || progressive || flatten || checkpointSeconds > 0 || resume) {
+                    System.out.println("--mapped, --progressive, --flatten, --checkpoint-interval and --resume don't work with animations, rendering the frames normally");
+                }
+                System.out.printf("Rendering %d frames on %d threads...\n", driver.animation.getFrameCount(), threads);
+                TileRenderer renderer = new TileRenderer(threads);
+                AnimationRenderer frames = new AnimationRenderer(renderer, outputFname, binary, packets);
+                frames.setLightBudget(lightBudget);
+                RenderStats stats = frames.render(driver);
+                renderer.shutdown();
+                stats.loadNanos += driverTime;
+                reportStats(stats, printStats, statsFname);
+                if (frames.getUnwrittenFrames() > 0) {
+                    System.err.printf("%d frames weren't written\n", frames.getUnwrittenFrames());
+                    System.exit(1);
+                }
+                return;
+            }
+            scene = buildScene(driver, flatten);
+            scene.getStats().loadNanos += driverTime;
+        }
+        if (packets && scene.setPacketTracing(true)) {
+            System.out.printf("Tracing primary rays in packets of %d\n", PacketTracer.LANES);
+        }
+        if (scene.setLightBudget(lightBudget)) {
+            System.out.printf("Shading each hit with %d of the %d lights\n", lightBudget, driver.lights.size());
+        }
+        System.out.printf("Placing camera and rendering scene on %d threads...\n", threads);
+        TileRenderer renderer = new TileRenderer(threads);
+        Image img;
+        Checkpoint checkpoint = null;
+        if (mapped && (!binary || progressive)) {
+            System.out.println("--mapped only works for plain P6 renders, keeping the image in memory");
+            mapped = false;
+        }
+        if (progressive && (checkpointSeconds > 0 || resume)) {
+            System.out.println("--checkpoint-interval and --resume don't work with --progressive, rendering without checkpoints");
+        }
+        if (progressive) {
+            ProgressiveRenderer passes = new ProgressiveRenderer(renderer, outputFname, previewMillis, binary);
+            img = passes.render(scene, driver.resWidth, driver.resHeight, driver.recurDepth);
+        } else {
+            img = newImage(driver, outputFname, mapped);
+            if (checkpointSeconds > 0 || resume) {
+                try {
+                    checkpoint = new Checkpoint(driverFname, outputFname, driver.resWidth, driver.resHeight,
+                            driver.recurDepth, renderer.getTileSize());
+                } catch (IOException e) {
+                    System.err.println("Couldn't read the driver file for checkpoints");
+                    System.err.println(e);
+                    System.exit(1);
+                }
+                renderWithCheckpoints(scene, img, driver, renderer, checkpoint,
+                        checkpointSeconds > 0 ? checkpointSeconds : DEFAULT_CHECKPOINT_SECONDS, resume);
+            } else {
+                scene.generateImage(img, driver.resWidth, driver.resHeight, driver.recurDepth, renderer);
+            }
+        }
+        renderer.shutdown();
+        System.out.printf("Writing scene to '%s'...\n", outputFname);
+        start = System.nanoTime();
+        boolean written = img.writeToFile(outputFname, binary);
+        if (checkpoint != null) {
+            if (written) {
+                checkpoint.delete();
+            } else {
+                // The checkpoint is all that's left of the render, bring it up to date before giving up
+                checkpoint.save(img);
+                System.err.println("Kept the checkpoint, run again with --resume to write the image");
+            }
+        }
+        if (!written) {
             System.exit(1);
         }
-        // Read the driver file and fill an array with all faces and spheres 
-        DriverModel driver = new DriverModel(driverFname);
-        ArrayList<Face> allObjectFaces = new ArrayList<Face>();
-        // Perform each translation and add it to the list of total faces
+        RenderStats stats = scene.getStats();
+        stats.writeNanos += System.nanoTime() - start;
+        reportStats(stats, printStats, statsFname);
+    }
+
+    /**
+     * Renders the tiles an earlier run didn't get to (or all of them), checkpointing as it goes
+     */
+    private static void renderWithCheckpoints (Scene scene, Image img, DriverModel driver, TileRenderer renderer,
+                                               Checkpoint checkpoint, long seconds, boolean resume) {
+        if (resume) {
+            int done = checkpoint.resume(img);
+            if (done > 0) {
+                System.out.printf("Resuming with %d of %d tiles already rendered\n", done, checkpoint.getTiles().length);
+            }
+        }
+        long start = scene.startFrame();
+        renderer.render(scene, img, driver.resWidth, driver.resHeight, driver.recurDepth, checkpoint, seconds * 1000);
+        scene.endFrame(start);
+    }
+
+    /**
+     * The image to render into, mapped onto the output file if asked for
+     */
+    static Image newImage (DriverModel driver, String outputFname, boolean mapped) {
+        if (!mapped) {
+            return Scene.newImage(driver.resWidth, driver.resHeight);
+        }
+        try {
+            return Scene.newMappedImage(outputFname, driver.resWidth, driver.resHeight);
+        } catch (IOException e) {
+            System.err.printf("Couldn't map '%s', keeping the image in memory\n", outputFname);
+            System.err.println(e);
+            return Scene.newImage(driver.resWidth, driver.resHeight);
+        }
+    }
+
+    private static void reportStats (RenderStats stats, boolean print, String statsFname) {
+        if (print) {
+            System.out.println(stats);
+        }
+        if (statsFname != null) {
+            writeStats(stats, statsFname);
+        }
+        System.out.println("Done!");
+    }
+
+    private static void runBatch (ArrayList<String> files, String batchList, String outDir, int threads,
+                                  boolean binary, boolean packets, boolean flatten, boolean mapped, int lightBudget,
+                                  boolean printStats, String statsFname) {
+        List<BatchRenderer.Job> jobs = new ArrayList<BatchRenderer.Job>();
+        try {
+            if (batchList != null) {
+                jobs.addAll(BatchRenderer.jobsFromList(batchList));
+            }
+            jobs.addAll(BatchRenderer.jobsFor(files, outDir));
+        } catch (Exception e) {
+            System.err.println("Failed to read the batch");
+            System.err.println(e);
+            System.exit(1);
+        }
+        System.out.printf("Rendering %d driver files on %d threads...\n", jobs.size(), threads);
+        TileRenderer renderer = new TileRenderer(threads);
+        BatchRenderer batch = new BatchRenderer(renderer, binary, packets);
+        batch.setFlatten(flatten);
+        batch.setMapped(mapped);
+        batch.setLightBudget(lightBudget);
+        RenderStats stats = batch.render(jobs);
+        renderer.shutdown();
+        reportStats(stats, printStats, statsFname);
+    }
+
+    private static void runDaemon (int threads, int jobs, int queue, long cacheMegabytes, int port) {
+        try {
+            new RenderDaemon(threads, jobs, queue, cacheMegabytes * 1024 * 1024).serve(port);
+        } catch (Exception e) {
+            System.err.println("Render daemon failed");
+            System.err.println(e);
+            System.exit(1);
+        }
+    }
+
+    private static void runCoordinator (String driverFname, String outputFname, int port, int tileSize, boolean binary,
+                                        int lightBudget) {
+        try {
+            // Only the resolution and depth are needed here, the workers load the scene
+            DriverModel driver = SceneSnapshot.isSnapshot(driverFname)
+                    ? SceneSnapshot.open(driverFname).getDriver() : new DriverModel(driverFname);
+            if (driver.cameraModel == null) {
+                throw new IOException("'" + driverFname + "' isn't a valid driver file");
+            }
+            RenderCoordinator tiles = new RenderCoordinator(driverFname, driver.resWidth, driver.resHeight,
+                    driver.recurDepth, tileSize);
+            tiles.setLightBudget(lightBudget);
+            Image img = tiles.render(port);
+            if (img == null) {
+                System.exit(1);
+            }
+            System.out.printf("Writing scene to '%s'...\n", outputFname);
+            if (!img.writeToFile(outputFname, binary)) {
+                System.exit(1);
+            }
+            System.out.println("Done!");
+        } catch (Exception e) {
+            System.err.println("Coordinator failed");
+            System.err.println(e);
+            System.exit(1);
+        }
+    }
+
+    private static void compileSnapshot (String driverFname, String snapshotFname) {
+        try {
+            SceneSnapshot.compile(driverFname, snapshotFname);
+            System.out.printf("Compiled '%s' into '%s'\n", driverFname, snapshotFname);
+        } catch (Exception e) {
+            System.err.println("Failed to write snapshot");
+            System.err.println(e);
+            System.exit(1);
+        }
+    }
+
+    private static SceneSnapshot openSnapshot (String snapshotFname) {
+        try {
+            return SceneSnapshot.open(snapshotFname);
+        } catch (Exception e) {
+            System.err.println("Failed to open snapshot");
+            System.err.println(e);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static void writeStats (RenderStats stats, String filename) {
+        try (PrintWriter out = new PrintWriter(filename)) {
+            out.print(stats.toJson());
+        } catch (Exception e) {
+            System.err.println("Failed to write stats file");
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Places every model in the driver file and builds the scene around them
+     */
+    public static Scene buildScene (DriverModel driver) {
+        return buildScene(driver, false);
+    }
+
+    /**
+     * Places each model of the driver file as an instance of a mesh shared by every placement of it,
+     * or if flatten is set copies each placement's triangles into one world space mesh like it used to
+     */
+    public static Scene buildScene (DriverModel driver, boolean flatten) {
+        if (flatten) {
+            return buildFlatScene(driver);
+        }
+        return buildScene(driver, new MeshCache());
+    }
+
+    /**
+     * Places each model as an instance, loading models through cache
+     */
+    public static Scene buildScene (DriverModel driver, MeshCache cache) {
+        ArrayList<Instance> instances = new ArrayList<Instance>();
+        RenderStats loading = new RenderStats();
+        long transformTime = 0;
+        for (Transformation t : driver.transformations) {
+            String fname = objPath + t.object_name + ".obj";
+            BVH model = cache.get(fname, loading);
+            long start = System.nanoTime();
+            SimpleMatrix trans = Translator.transformMatrix(t.rotation_axis, t.theta, t.scale, t.t_point);
+            instances.add(new Instance(model, trans));
+            transformTime += System.nanoTime() - start;
+            System.out.printf("Placing object '%s'...\n", fname);
+        }
+        System.out.printf("%d placements of %d models\n", instances.size(), cache.size());
+        long start = System.nanoTime();
+        Scene scene = new Scene (driver.cameraModel, new Mesh(), driver.spheres, instances, driver.lights, driver.ambient);
+        scene.setAntialiasing(driver.aaDepth, driver.aaThreshold);
+        RenderStats stats = scene.getStats();
+        stats.buildNanos += System.nanoTime() - start + loading.buildNanos;
+        stats.loadNanos += loading.loadNanos;
+        stats.transformNanos += transformTime;
+        return scene;
+    }
+
+    private static Scene buildFlatScene (DriverModel driver) {
+        long loadTime = 0, transformTime = 0;
+        Mesh sceneMesh = new Mesh();
+        // Perform each translation and add it to the scene mesh
         for (Transformation t : driver.transformations) {
+            long start = System.nanoTime();
             // Creating two objectmodels is ineffecienct will lead to memory issues w/ large objects 
             ObjectModel baseObj = new ObjectModel(objPath + t.object_name + ".obj");
+            long loaded = System.nanoTime();
             SimpleMatrix trans = Translator.performTranslations
                 (baseObj.getVerticesMatrix(), t.rotation_axis, t.theta, t.scale, t.t_point);
             ObjectModel transObj = new ObjectModel(trans, baseObj);
-            allObjectFaces.addAll(transObj.getFaces());
+            sceneMesh.append(transObj.getMesh());
+            loadTime += loaded - start;
+            transformTime += System.nanoTime() - loaded;
             System.out.printf("Placing object '%s'...\n", baseObj.getName());
         }
-        System.out.println("Placing camera and rendering scene...");
-        Scene scene = new Scene (driver.cameraModel, allObjectFaces, driver.spheres, driver.lights, driver.ambient);
-        Image img = scene.generateImage(driver.resWidth, driver.resHeight, driver.recurDepth);
-        System.out.printf("Writing scene to '%s'...\n", outputFname);
-        img.writeToFile(outputFname);
-        System.out.println("Done!");
+        sceneMesh.trim();
+        long start = System.nanoTime();
+        Scene scene = new Scene (driver.cameraModel, sceneMesh, driver.spheres, driver.lights, driver.ambient);
+        scene.setAntialiasing(driver.aaDepth, driver.aaThreshold);
+        RenderStats stats = scene.getStats();
+        stats.buildNanos += System.nanoTime() - start;
+        stats.loadNanos += loadTime;
+        stats.transformNanos += transformTime;
+        return scene;
     }
 }
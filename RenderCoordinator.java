@@ -0,0 +1,286 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a render into tiles and hands them out to RenderWorker processes over TCP.
+ * Each worker loads its own copy of the scene from the same driver file (or snapshot), is sent
+ * as many tiles at a time as it has threads, and sends back the finished pixels row by row.
+ * Workers can join at any point. If one drops out, or a tile fails on it, its tiles go back on
+ * the queue for the others, a tile that fails MAX_ATTEMPTS times stops the render.
+ * Workers send ALIVE every KEEPALIVE_MS while they load the scene and render, so a slow tile
+ * isn't mistaken for a hung worker. One that says nothing for WORKER_TIMEOUT_MS counts as dropped out.
+ *
+ * The conversation, all through DataInput / DataOutput:
+ *  - coordinator: MAGIC, input path, width, height, depth, light budget
+ *  - worker: READY and its thread count, or ERROR and a message if the scene wouldn't load
+ *  - coordinator: TILE, index, iStart, iEnd, jStart, jEnd for each tile it hands over
+ *  - worker: RESULT, index, then (jEnd - jStart) r, g, b bytes for each row i of the tile,
+ *            or FAILED, index and a message
+ *  - coordinator: DONE once every tile is in
+ * with the worker's ALIVEs in between any of its messages from the start.
+ */
+public class RenderCoordinator {
+    public static final int DEFAULT_PORT = 7342;
+    public static final int DEFAULT_TILE_SIZE = 64;
+    static final int MAGIC = 0x52545443; // "RTTC"
+    static final int READY = 1, ERROR = 2, TILE = 3, RESULT = 4, FAILED = 5, DONE = 6, ALIVE = 7;
+    // How often workers say they're still there
+    static final int KEEPALIVE_MS = 5 * 1000;
+    // How many times a tile is tried before giving up on the render
+    private static final int MAX_ATTEMPTS = 3;
+    // How long a worker can go without saying anything, a few keepalives missed in a row
+    private static final int WORKER_TIMEOUT_MS = 6 * KEEPALIVE_MS;
+
+    private String input;
+    private int width, height, depth;
+    private int lightBudget;
+    private Tile [] tiles;
+    private Image img;
+    private LinkedBlockingDeque<Tile> queue = new LinkedBlockingDeque<Tile>();
+    private boolean [] finished;
+    private int [] attempts;
+    private CountDownLatch remaining;
+    private ServerSocket server;
+    private List<Thread> connections = new ArrayList<Thread>();
+    private volatile String failure;
+
+    /**
+     * A render of input (a driver file or snapshot) at width x height, cut into size x size tiles
+     */
+    public RenderCoordinator (String input, int width, int height, int depth, int tileSize) {
+        this.input = new File(input).getAbsolutePath();
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.tiles = Tile.split(width, height, tileSize);
+        this.img = Scene.newImage(width, height);
+        this.finished = new boolean [tiles.length];
+        this.attempts = new int [tiles.length];
+        this.remaining = new CountDownLatch(tiles.length);
+        for (Tile tile : tiles) {
+            queue.add(tile);
+        }
+    }
+
+    /**
+     * Has the workers shade each hit with at most budget lights, see Scene.setLightBudget
+     */
+    public void setLightBudget (int budget) {
+        this.lightBudget = budget;
+    }
+
+    /**
+     * Waits for workers on port and returns the image once they've rendered every tile,
+     * or null if the render had to be given up
+     */
+    public Image render (int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.printf("Waiting for workers on %s:%d, %d tiles to render...\n",
+                server.getInetAddress().getHostAddress(), port, tiles.length);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run () {
+                acceptWorkers();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            while (!remaining.await(100, TimeUnit.MILLISECONDS)) {
+                if (failure != null) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.close();
+        }
+        // Give the workers a moment to be told they're done
+        for (Thread t : connectionThreads()) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (failure != null) {
+            System.err.println(failure);
+            return null;
+        }
+        return img;
+    }
+
+    private void acceptWorkers () {
+        int workers = 0;
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                final int id = ++workers;
+                Thread t = new Thread(new Runnable() {
+                    public void run () {
+                        serveWorker(id, socket);
+                    }
+                });
+                t.setDaemon(true);
+                synchronized (connections) {
+                    connections.add(t);
+                }
+                t.start();
+            } catch (IOException e) {
+                // Closed once the render is done
+            }
+        }
+    }
+
+    private List<Thread> connectionThreads () {
+        synchronized (connections) {
+            return new ArrayList<Thread>(connections);
+        }
+    }
+
+    /**
+     * Keeps one worker busy until every tile is in, putting its tiles back if it goes away
+     */
+    private void serveWorker (int id, Socket socket) {
+        List<Tile> outstanding = new ArrayList<Tile>();
+        int rendered = 0;
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setSoTimeout(WORKER_TIMEOUT_MS);
+            out.writeInt(MAGIC);
+            out.writeUTF(input);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(depth);
+            out.writeInt(lightBudget);
+            out.flush();
+            int reply = readMessage(in);
+            if (reply == ERROR) {
+                System.err.printf("Worker %d couldn't load the scene: %s\n", id, in.readUTF());
+                return;
+            }
+            int credit = Math.max(1, in.readInt());
+            System.out.printf("Worker %d joined with %d threads\n", id, credit);
+            while (failure == null) {
+                // Top the worker up with tiles
+                while (outstanding.size() < credit) {
+                    Tile tile = queue.poll();
+                    if (tile == null) {
+                        break;
+                    }
+                    sendTile(out, tile);
+                    outstanding.add(tile);
+                }
+                out.flush();
+                if (outstanding.isEmpty()) {
+                    if (remaining.getCount() == 0) {
+                        break;
+                    }
+                    // Everything is handed out, but tiles might still come back from a worker that fails
+                    Tile tile = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (tile != null) {
+                        queue.addFirst(tile);
+                    }
+                    continue;
+                }
+                int message = readMessage(in);
+                int index = in.readInt();
+                Tile tile = tiles[index];
+                if (message == RESULT) {
+                    readPixels(in, tile);
+                    outstanding.remove(tile);
+                    rendered++;
+                } else {
+                    String why = in.readUTF();
+                    outstanding.remove(tile);
+                    System.err.printf("Worker %d failed tile %d: %s\n", id, index, why);
+                    retry(tile);
+                }
+            }
+            out.writeInt(DONE);
+            out.flush();
+            System.out.printf("Worker %d finished, it rendered %d tiles\n", id, rendered);
+        } catch (SocketTimeoutException e) {
+            System.err.printf("Worker %d stopped answering, putting its %d tiles back\n", id, outstanding.size());
+        } catch (IOException e) {
+            System.err.printf("Lost worker %d, putting its %d tiles back\n", id, outstanding.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Tile tile : outstanding) {
+            retry(tile);
+        }
+    }
+
+    /**
+     * Reads the worker's next message, skipping its keepalives
+     */
+    private static int readMessage (DataInputStream in) throws IOException {
+        int message = in.readInt();
+        while (message == ALIVE) {
+            message = in.readInt();
+        }
+        return message;
+    }
+
+    private static void sendTile (DataOutputStream out, Tile tile) throws IOException {
+        out.writeInt(TILE);
+        out.writeInt(tile.index);
+        out.writeInt(tile.iStart);
+        out.writeInt(tile.iEnd);
+        out.writeInt(tile.jStart);
+        out.writeInt(tile.jEnd);
+    }
+
+    /**
+     * Reads a tile's packed rows into the image. The whole tile is read before any of it is used,
+     * so a worker dropping out half way through leaves the tile to be rendered again.
+     * A tile that's already in (a retry that raced the original) is thrown away.
+     */
+    private void readPixels (DataInputStream in, Tile tile) throws IOException {
+        byte [] rows = new byte [3 * tile.pixelCount()];
+        in.readFully(rows);
+        synchronized (this) {
+            if (finished[tile.index]) {
+                return;
+            }
+            finished[tile.index] = true;
+        }
+        int k = 0;
+        for (int i = tile.iStart; i < tile.iEnd; i++) {
+            for (int j = tile.jStart; j < tile.jEnd; j++, k += 3) {
+                img.setPixel(i, j, rows[k] & 0xFF, rows[k + 1] & 0xFF, rows[k + 2] & 0xFF);
+            }
+        }
+        remaining.countDown();
+    }
+
+    /**
+     * Puts a tile back on the queue, unless it's been tried too many times
+     */
+    private synchronized void retry (Tile tile) {
+        if (finished[tile.index]) {
+            return;
+        }
+        if (++attempts[tile.index] >= MAX_ATTEMPTS) {
+            failure = String.format("Tile %d failed %d times, giving up", tile.index, attempts[tile.index]);
+            return;
+        }
+        queue.addFirst(tile);
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the ray tracer running between renders so the JIT stays warm and models stay loaded.
+ * Jobs come in over a socket on the loopback interface, one command per line:
+ *
+ *   render <driver.txt or scene.snap> <output.ppm> [--p3] [--packets] [--light-budget n]
+ *   status
+ *   shutdown
+ *
+ * A render replies "queued <id>" straight away, then "done <id> <ms> ms" or "error <id> <why>"
+ * once it's finished. Paths are relative to the directory the daemon was started in.
+ *
+ * Models go through one MeshCache shared by every job, so rendering against the same models
+ * again skips all of the parsing and building (models are loaded again if their files change).
+ * Jobs run on a fixed number of job threads with a bounded queue, a job that doesn't fit in the
+ * queue is turned away. All jobs share one TileRenderer, so the cores are split between them.
+ */
+public class RenderDaemon {
+    public static final int DEFAULT_PORT = 7341;
+
+    private MeshCache cache;
+    private TileRenderer renderer;
+    private ThreadPoolExecutor jobs;
+    private ServerSocket server;
+    private volatile boolean running = true;
+    private AtomicInteger nextId = new AtomicInteger(1);
+    private AtomicInteger finished = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * A daemon rendering on threads threads, running maxJobs jobs at once with up to queueSize
+     * more waiting, and keeping about cacheBytes of models loaded
+     */
+    public RenderDaemon (int threads, int maxJobs, int queueSize, long cacheBytes) {
+        this.cache = new MeshCache(cacheBytes);
+        this.renderer = new TileRenderer(threads);
+        this.jobs = new ThreadPoolExecutor(maxJobs, maxJobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+    }
+
+    /**
+     * Takes jobs on port until told to shut down
+     */
+    public void serve (int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.printf("Listening for jobs on %s:%d...\n", server.getInetAddress().getHostAddress(), port);
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try {
+            while (running) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (!running) {
+                        break;
+                    }
+                    throw e;
+                }
+                connections.submit(new Runnable() {
+                    public void run () {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            // Let queued jobs finish before going away
+            jobs.shutdown();
+            try {
+                jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connections.shutdownNow();
+            renderer.shutdown();
+            System.out.println("Done!");
+        }
+    }
+
+    private void handle (Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String [] parts = line.trim().split("\\s+");
+                if (parts[0].equals("render") && parts.length >= 3) {
+                    out.println(submit(parts, out));
+                } else if (parts[0].equals("status")) {
+                    out.println(status());
+                } else if (parts[0].equals("shutdown")) {
+                    out.println("bye");
+                    shutdown();
+                    return;
+                } else {
+                    out.println("error unknown command '" + line.trim() + "'");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to client");
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Queues a render and waits for it, returning the reply for when it's done
+     */
+    private String submit (String [] parts, PrintWriter out) {
+        final String input = parts[1];
+        final String output = parts[2];
+        boolean binary = true;
+        boolean packets = false;
+        int lightBudget = 0;
+        for (int i = 3; i < parts.length; i++) {
+            if (parts[i].equals("--p3")) {
+                binary = false;
+            } else if (parts[i].equals("--packets")) {
+                packets = true;
+            } else if (parts[i].equals("--light-budget") && i + 1 < parts.length) {
+                try {
+                    lightBudget = Integer.parseInt(parts[++i]);
+                } catch (NumberFormatException e) {
+                    return "error bad light budget '" + parts[i] + "'";
+                }
+            }
+        }
+        final int id = nextId.getAndIncrement();
+        final boolean p6 = binary, usePackets = packets;
+        final int budget = lightBudget;
+        Future<Long> job;
+        try {
+            job = jobs.submit(new Callable<Long>() {
+                public Long call () throws Exception {
+                    return render(id, input, output, p6, usePackets, budget);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failed.incrementAndGet();
+            return "error " + id + " queue is full";
+        }
+        out.println("queued " + id);
+        try {
+            long nanos = job.get();
+            finished.incrementAndGet();
+            return String.format("done %d %.1f ms", id, nanos / 1e6);
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            System.err.printf("Job %d failed\n", id);
+            System.err.println(e.getCause());
+            return "error " + id + " " + e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "error " + id + " interrupted";
+        }
+    }
+
+    /**
+     * Renders one job, returning how long it took
+     */
+    private long render (int id, String input, String output, boolean binary, boolean packets, int lightBudget)
+            throws IOException {
+        long start = System.nanoTime();
+        System.out.printf("Job %d: rendering '%s' to '%s'...\n", id, input, output);
+        if (!new File(input).isFile()) {
+            throw new IOException("'" + input + "' does not exist");
+        }
+        DriverModel driver;
+        Scene scene;
+        if (SceneSnapshot.isSnapshot(input)) {
+            SceneSnapshot snapshot = SceneSnapshot.open(input);
+            driver = snapshot.getDriver();
+            scene = snapshot.getScene();
+        } else {
+            driver = new DriverModel(input);
+            if (driver.cameraModel == null) {
+                throw new IOException("'" + input + "' isn't a valid driver file");
+            }
+            if (driver.animation != null && driver.animation.getFrameCount() > 1) {
+                AnimationRenderer frames = new AnimationRenderer(renderer, output, binary, packets);
+                frames.setLightBudget(lightBudget);
+                frames.render(driver, cache);
+                if (frames.getUnwrittenFrames() > 0) {
+                    throw new IOException(frames.getUnwrittenFrames() + " frames of '" + output + "' weren't written");
+                }
+                return System.nanoTime() - start;
+            }
+            scene = Raytracer.buildScene(driver, cache);
+        }
+        if (packets) {
+            scene.setPacketTracing(true);
+        }
+        scene.setLightBudget(lightBudget);
+        Image img = scene.generateImage(driver.resWidth, driver.resHeight, driver.recurDepth, renderer);
+        if (!img.writeToFile(output, binary)) {
+            throw new IOException("couldn't write '" + output + "'");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private String status () {
+        return String.format("status running %d queued %d done %d failed %d models %d materials %d cache %.1f MB",
+                jobs.getActiveCount(), jobs.getQueue().size(), finished.get(), failed.get(),
+                cache.size(), MaterialLibrary.size(), cache.getByteSize() / (1024.0 * 1024.0));
+    }
+
+    private void shutdown () {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Sends one render to a daemon on port and prints its replies, returning whether it worked
+     */
+    public static boolean submit (int port, String input, String output, boolean binary, boolean packets,
+                                  int lightBudget) {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+            out.printf("render %s %s%s%s%s\n", input, output, binary ? "" : " --p3", packets ? " --packets" : "",
+                    lightBudget > 0 ? " --light-budget " + lightBudget : "");
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("done")) {
+                    return true;
+                }
+                if (line.startsWith("error")) {
+                    return false;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            System.err.printf("Couldn't reach the render daemon on port %d\n", port);
+            System.err.println(e);
+            return false;
+        }
+    }
+}
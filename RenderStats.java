@@ -0,0 +1,122 @@
+/**
+ * Counters for one frame of rendering, and how long each stage of getting there took.
+ * Every rendering thread counts into its own RenderStats and merges it into the scene's
+ * once it finishes a tile, so counting costs a few adds and no locking on the hot path.
+ */
+public class RenderStats {
+    // Rays cast
+    long primaryRays, shadowRays, reflectionRays;
+    // Ray / primitive intersection tests
+    long triangleTests, sphereTests;
+    // Primary and reflection rays that hit something or flew off into nothing
+    long hits, misses;
+    // Shadow rays that found something between the surface and the light
+    long shadowsBlocked;
+    // Shadow rays that tried the last occluder of their light first, and the ones it blocked
+    long occluderTries, occluderHits;
+    // Time spent in each stage
+    long loadNanos, transformNanos, buildNanos, renderNanos, writeNanos;
+
+    public void reset () {
+        primaryRays = shadowRays = reflectionRays = 0;
+        triangleTests = sphereTests = 0;
+        hits = misses = shadowsBlocked = 0;
+        occluderTries = occluderHits = 0;
+        loadNanos = transformNanos = buildNanos = renderNanos = writeNanos = 0;
+    }
+
+    /**
+     * Adds other's counts into this one
+     */
+    public synchronized void merge (RenderStats other) {
+        primaryRays += other.primaryRays;
+        shadowRays += other.shadowRays;
+        reflectionRays += other.reflectionRays;
+        triangleTests += other.triangleTests;
+        sphereTests += other.sphereTests;
+        hits += other.hits;
+        misses += other.misses;
+        shadowsBlocked += other.shadowsBlocked;
+        occluderTries += other.occluderTries;
+        occluderHits += other.occluderHits;
+        loadNanos += other.loadNanos;
+        transformNanos += other.transformNanos;
+        buildNanos += other.buildNanos;
+        renderNanos += other.renderNanos;
+        writeNanos += other.writeNanos;
+    }
+
+    /**
+     * Adds the ray counts and render and write times of a frame, but not the loading and building
+     * of the scene it was rendered from, for adding up several frames of the same scene
+     */
+    public synchronized void mergeFrame (RenderStats frame) {
+        long load = loadNanos, transform = transformNanos, build = buildNanos;
+        merge(frame);
+        loadNanos = load;
+        transformNanos = transform;
+        buildNanos = build;
+    }
+
+    /**
+     * Moves the intersection test counts off of a ray and into these stats
+     */
+    void collectTests (Ray ray) {
+        triangleTests += ray.triangleTests;
+        sphereTests += ray.sphereTests;
+        ray.triangleTests = 0;
+        ray.sphereTests = 0;
+    }
+
+    public long getTotalRays () {
+        return primaryRays + shadowRays + reflectionRays;
+    }
+
+    /**
+     * How deep the average primary ray went, 0 means nothing bounced
+     */
+    public double getAverageDepth () {
+        return primaryRays == 0 ? 0 : (double) reflectionRays / primaryRays;
+    }
+
+    /**
+     * Fraction of shadow rays that tried a cached occluder and were blocked by it
+     */
+    public double getOccluderHitRate () {
+        return occluderTries == 0 ? 0 : (double) occluderHits / occluderTries;
+    }
+
+    public String toString () {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Rays:        %,d (%,d primary, %,d shadow, %,d reflection)\n",
+                getTotalRays(), primaryRays, shadowRays, reflectionRays));
+        sb.append(String.format("Tests:       %,d triangle, %,d sphere\n", triangleTests, sphereTests));
+        sb.append(String.format("Hits:        %,d hits, %,d misses, %,d shadow rays blocked\n", hits, misses, shadowsBlocked));
+        sb.append(String.format("Occluders:   %,d of %,d cached occluders still blocked (%.1f%%)\n",
+                occluderHits, occluderTries, 100 * getOccluderHitRate()));
+        sb.append(String.format("Avg depth:   %.3f\n", getAverageDepth()));
+        sb.append(String.format("Time (ms):   load %.1f, transform %.1f, build %.1f, render %.1f, write %.1f",
+                loadNanos / 1e6, transformNanos / 1e6, buildNanos / 1e6, renderNanos / 1e6, writeNanos / 1e6));
+        return sb.toString();
+    }
+
+    public String toJson () {
+        return String.format("{\n"
+                + "  \"rays\": {\"primary\": %d, \"shadow\": %d, \"reflection\": %d, \"total\": %d},\n"
+                + "  \"tests\": {\"triangle\": %d, \"sphere\": %d},\n"
+                + "  \"hits\": %d,\n"
+                + "  \"misses\": %d,\n"
+                + "  \"shadowsBlocked\": %d,\n"
+                + "  \"occluderCache\": {\"tries\": %d, \"hits\": %d},\n"
+                + "  \"averageDepth\": %s,\n"
+                + "  \"timeMillis\": {\"load\": %s, \"transform\": %s, \"build\": %s, \"render\": %s, \"write\": %s}\n"
+                + "}\n",
+                primaryRays, shadowRays, reflectionRays, getTotalRays(), triangleTests, sphereTests,
+                hits, misses, shadowsBlocked, occluderTries, occluderHits, Double.toString(getAverageDepth()),
+                millis(loadNanos), millis(transformNanos), millis(buildNanos), millis(renderNanos), millis(writeNanos));
+    }
+
+    private static String millis (long nanos) {
+        return Double.toString(nanos / 1e6);
+    }
+}
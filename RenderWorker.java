@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders tiles for a RenderCoordinator, see there for what goes back and forth.
+ * The worker loads the scene itself from the path the coordinator sends, so that path has to be
+ * readable from wherever the worker runs. Each tile it's handed renders on one of its threads,
+ * and the pixels go back as soon as the tile is done, in whatever order the tiles finish.
+ * A timer thread keeps telling the coordinator the worker is still there, however long the tiles take.
+ */
+public class RenderWorker {
+    /**
+     * Just the pixels of one tile, set through the same i and j as the whole image
+     */
+    private static class TileImage extends Image {
+        private Tile tile;
+
+        TileImage (Tile tile) {
+            super(tile.jEnd - tile.jStart, tile.iEnd - tile.iStart);
+            this.tile = tile;
+        }
+
+        @Override
+        public void setPixel (int i, int j, int r, int g, int b) {
+            super.setPixel(i - tile.iStart, j - tile.jStart, r, g, b);
+        }
+    }
+
+    private int threads;
+    private Scene scene;
+    private int width, height, depth;
+    private int lightBudget;
+
+    public RenderWorker (int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Connects to a coordinator on host:port and renders tiles until it says it's done,
+     * returning whether the worker got through the whole render
+     */
+    public boolean work (String host, int port) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService keepalive = Executors.newSingleThreadScheduledExecutor();
+        int rendered = 0;
+        try (Socket s = new Socket(host, port);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (in.readInt() != RenderCoordinator.MAGIC) {
+                throw new IOException("Not a render coordinator on port " + port);
+            }
+            keepalive.scheduleAtFixedRate(new Runnable() {
+                public void run () {
+                    sendAlive(out);
+                }
+            }, RenderCoordinator.KEEPALIVE_MS, RenderCoordinator.KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+            String input = in.readUTF();
+            width = in.readInt();
+            height = in.readInt();
+            depth = in.readInt();
+            lightBudget = in.readInt();
+            System.out.printf("Loading '%s'...\n", input);
+            try {
+                scene = load(input);
+                scene.setLightBudget(lightBudget);
+            } catch (Exception e) {
+                synchronized (out) {
+                    out.writeInt(RenderCoordinator.ERROR);
+                    out.writeUTF(String.valueOf(e));
+                    out.flush();
+                }
+                throw e;
+            }
+            synchronized (out) {
+                out.writeInt(RenderCoordinator.READY);
+                out.writeInt(threads);
+                out.flush();
+            }
+            System.out.printf("Rendering tiles on %d threads...\n", threads);
+            while (true) {
+                int message = in.readInt();
+                if (message == RenderCoordinator.DONE) {
+                    break;
+                }
+                final Tile tile = new Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                pool.execute(new Runnable() {
+                    public void run () {
+                        renderTile(tile, out);
+                    }
+                });
+                rendered++;
+            }
+            System.out.printf("Done! Rendered %d tiles\n", rendered);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Worker stopped");
+            System.err.println(e);
+            return false;
+        } finally {
+            keepalive.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
+
+    private static void sendAlive (DataOutputStream out) {
+        try {
+            synchronized (out) {
+                out.writeInt(RenderCoordinator.ALIVE);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The coordinator has gone, the main loop finds out on its next read
+        }
+    }
+
+    private static Scene load (String input) throws IOException {
+        if (SceneSnapshot.isSnapshot(input)) {
+            return SceneSnapshot.open(input).getScene();
+        }
+        DriverModel driver = new DriverModel(input);
+        if (driver.cameraModel == null) {
+            throw new IOException("'" + input + "' isn't a valid driver file");
+        }
+        return Raytracer.buildScene(driver, new MeshCache());
+    }
+
+    /**
+     * Renders a tile and sends it back, or tells the coordinator it failed.
+     * Errors count as failures too, otherwise the coordinator would wait on the tile forever.
+     */
+    private void renderTile (Tile tile, DataOutputStream out) {
+        TileImage img = new TileImage(tile);
+        String failure = null;
+        try {
+            scene.renderTile(tile, img, width, height, depth);
+        } catch (Throwable e) {
+            failure = String.valueOf(e);
+        }
+        byte [] rows = null;
+        if (failure == null) {
+            rows = new byte [3 * tile.pixelCount()];
+            int k = 0;
+            for (int i = 0; i < img.height; i++) {
+                for (int j = 0; j < img.width; j++, k += 3) {
+                    int p = img.getPackedPixel(i, j);
+                    rows[k] = (byte) (p >> 16);
+                    rows[k + 1] = (byte) (p >> 8);
+                    rows[k + 2] = (byte) p;
+                }
+            }
+        }
+        try {
+            synchronized (out) {
+                if (failure == null) {
+                    out.writeInt(RenderCoordinator.RESULT);
+                    out.writeInt(tile.index);
+                    out.write(rows);
+                } else {
+                    out.writeInt(RenderCoordinator.FAILED);
+                    out.writeInt(tile.index);
+                    out.writeUTF(failure);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The coordinator has gone, the main loop finds out on its next read
+        }
+    }
+}
@@ -1,59 +1,523 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Scene {
+    // 2^4 = 16 x 16 samples a pixel at most
+    public static final int MAX_AA_DEPTH = 4;
+
     private Camera camera;
     // Objects in the scene
-    private List<Face> faces;
+    private Mesh mesh;
     private List<Sphere> spheres;
+    private List<Instance> instances;
+    // Acceleration structure over the faces and spheres
+    private BVH bvh;
     // Lights in the scene
     private List<Light> lights;
     private Light ambient;
+    // Picks a budget of lights to shade each hit with, null shades with every light
+    private LightTree lightTree;
+    private int lightBudget;
+    // Adaptive antialiasing, off when aaDepth is 0. Pixels are split into squares down to
+    // 2^aaDepth on a side wherever the corner samples differ by more than aaThreshold
+    private int aaDepth;
+    private double aaThreshold;
+    // Trace primary rays in SIMD packets, see PacketTracer
+    private boolean packets;
+    // Counters for the last frame rendered
+    private RenderStats stats = new RenderStats();
+    // Tells the shadow occluder caches of the render threads which scene they were filled for
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private final int id = NEXT_ID.incrementAndGet();
+
+    public Scene (Camera c, Mesh m, List<Sphere> s, List<Light> l, Light a) {
+        this(c, m, s, new ArrayList<Instance>(), l, a);
+    }
 
-    public Scene (Camera c, List<Face> f, List<Sphere> s, List<Light> l, Light a) {
+    /**
+     * A scene with placed instances of models as well as the triangles of m
+     */
+    public Scene (Camera c, Mesh m, List<Sphere> s, List<Instance> inst, List<Light> l, Light a) {
+        this(c, new BVH(m, s, inst), l, a);
+    }
+
+    /**
+     * A scene around a BVH that's already built
+     */
+    public Scene (Camera c, BVH b, List<Light> l, Light a) {
         camera = c;
-        faces = f;
-        spheres = s;
+        bvh = b;
+        mesh = b.mesh;
+        spheres = b.spheres;
+        instances = b.instances;
         lights = l;
         ambient = a;
     }
 
     /**
-     * Renders a distance heat map for an object with width x height resolution
+     * Renders the scene with width x height resolution on a single thread
      */
     public Image generateImage (int width, int height, int depth) {
-        Image img = new Image (width, height);
-        RGB [][] pixelMap = new RGB [width][height];
-        // For each pixel cast a ray, and see what it hits
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                Ray r = castRay (i, j , width, height);
-                pixelMap[i][j] = colorPixel(r, depth);
+        long start = startFrame();
+        Image img = newImage(width, height);
+        for (Tile tile : Tile.split(width, height, TileRenderer.DEFAULT_TILE_SIZE)) {
+            renderTile(tile, img, width, height, depth);
+        }
+        endFrame(start);
+        return img;
+    }
+
+    /**
+     * Renders the scene with width x height resolution, spreading tiles across the renderer's threads
+     */
+    public Image generateImage (int width, int height, int depth, TileRenderer renderer) {
+        return generateImage(newImage(width, height), width, height, depth, renderer);
+    }
+
+    /**
+     * Same as above, rendering into an image made by newImage or newMappedImage
+     */
+    public Image generateImage (Image img, int width, int height, int depth, TileRenderer renderer) {
+        long start = startFrame();
+        renderer.render(this, img, width, height, depth);
+        endFrame(start);
+        return img;
+    }
+
+    /**
+     * Clears the ray counters for a new frame and returns the start time.
+     * The load and build times are left alone, they belong to the scene not the frame.
+     */
+    long startFrame () {
+        RenderStats frame = new RenderStats();
+        frame.loadNanos = stats.loadNanos;
+        frame.transformNanos = stats.transformNanos;
+        frame.buildNanos = stats.buildNanos;
+        stats = frame;
+        return System.nanoTime();
+    }
+
+    void endFrame (long start) {
+        stats.renderNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Makes the image that pixel i, j of a width x height render lands in.
+     * Pixel i, j is row i, column j of the image, so the image is height pixels across.
+     */
+    public static Image newImage (int width, int height) {
+        return new Image (height, width);
+    }
+
+    /**
+     * Same as newImage, but the pixels go straight into a P6 file mapped into memory, see MappedImage
+     */
+    public static Image newMappedImage (String filename, int width, int height) throws IOException {
+        return new MappedImage(filename, height, width);
+    }
+
+    /**
+     * Renders the pixels covered by a tile into the image
+     */
+    public void renderTile (Tile tile, Image img, int width, int height, int depth) {
+        renderTile(tile, img, width, height, depth, 1, 0);
+    }
+
+    /**
+     * Renders the pixels of a tile that sit on a step x step grid (i and j both multiples of step),
+     * leaving out the ones on the coarser skip grid that an earlier pass already rendered.
+     * step 1 with skip 0 is every pixel. Each pixel comes out exactly the same whichever pass renders it.
+     */
+    public void renderTile (Tile tile, Image img, int width, int height, int depth, int step, int skip) {
+        Scratch scratch = scratchFor(depth);
+        RenderStats tileStats = scratch.startTile();
+        if (aaDepth > 0) {
+            scratch.startGrid(tile, 1 << aaDepth);
+        }
+        int iFirst = (tile.iStart + step - 1) / step * step;
+        int jFirst = (tile.jStart + step - 1) / step * step;
+        RayBatch batch = scratch.batch;
+        batch.start(tile.pixelCount(), depth);
+        // For each pixel cast a ray, antialiased pixels are done right away from their samples
+        for (int i = iFirst; i < tile.iEnd; i += step) {
+            for (int j = jFirst; j < tile.jEnd; j += step) {
+                if (skip > 0 && i % skip == 0 && j % skip == 0) {
+                    continue;
+                }
+                if (aaDepth > 0) {
+                    // The samples count themselves as primary rays
+                    scratch.pixel.set(0, 0, 0);
+                    int size = 1 << aaDepth;
+                    adaptiveSquare(scratch, tile, (i - tile.iStart) * size, (j - tile.jStart) * size, size,
+                            width, height, depth, 1, scratch.pixel);
+                    img.setPixel(i, j, scratch.pixel);
+                } else {
+                    camera.castRay (i, j , width, height, batch.add(i, j));
+                }
+            }
+        }
+        // Then see what the rest hit, all together
+        tracePaths(scratch, batch, height, depth);
+        for (int p = 0; p < batch.size; p++) {
+            img.setPixel(batch.pixelI[p], batch.pixelJ[p], batch.resolve(p, scratch.pixel));
+        }
+        tileStats.primaryRays += batch.size;
+        batch.collectTests(tileStats);
+        tileStats.collectTests(scratch.ray);
+        tileStats.collectTests(scratch.shadowRay);
+        stats.merge(tileStats);
+    }
+
+    /**
+     * Traces every queued path of the batch one level at a time:
+     * intersect all of the rays, shade all of the hits, and queue the reflections for the next level,
+     * until nothing is left or the paths have gone depth bounces.
+     * Each hit picks its lights from its pixel and bounce, so a pixel comes out the same in any tile or pass.
+     */
+    private void tracePaths (Scratch scratch, RayBatch batch, int height, int depth) {
+        RenderStats counts = scratch.stats;
+        for (int level = 0; level <= depth && batch.queued > 0; level++) {
+            if (level == 0 && packets) {
+                // Neighbouring primary rays are next to each other in the queue, so trace them as packets
+                PacketTracer tracer = scratch.packetTracer(bvh);
+                for (int q = 0; q < batch.queued; q += PacketTracer.LANES) {
+                    tracer.closestHits(batch.rays, batch.queue, q, Math.min(PacketTracer.LANES, batch.queued - q));
+                }
+                for (int q = 0; q < batch.queued; q++) {
+                    int p = batch.queue[q];
+                    batch.hit[p] = batch.rays[p].hasHit();
+                }
+            } else {
+                for (int q = 0; q < batch.queued; q++) {
+                    int p = batch.queue[q];
+                    batch.hit[p] = bvh.closestHit(batch.rays[p]);
+                }
+            }
+            int next = 0;
+            for (int q = 0; q < batch.queued; q++) {
+                int p = batch.queue[q];
+                if (!batch.hit[p]) {
+                    counts.misses++;
+                    continue;
+                }
+                counts.hits++;
+                Ray ray = batch.rays[p];
+                if (lightTree != null) {
+                    samplerFor(scratch).seed(((long) batch.pixelI[p] * height + batch.pixelJ[p]) * (depth + 1) + level);
+                }
+                shadeHit(scratch, ray, scratch.sample);
+                batch.setColor(p, level, scratch.sample);
+                if (level < depth) {
+                    bounce(scratch, ray);
+                    batch.next[next++] = p;
+                }
+            }
+            batch.advance(next);
+        }
+    }
+
+    /**
+     * Turns on adaptive antialiasing. Each pixel starts with a sample at its four corners, shared with
+     * the pixels around it, and is split into four wherever the corners differ by more than threshold
+     * in any channel, at most maxDepth times. 0 turns it off and fires one ray through each pixel.
+     */
+    public void setAntialiasing (int maxDepth, double threshold) {
+        if (maxDepth > MAX_AA_DEPTH) {
+            System.err.printf("Antialiasing depth %d is too deep, using %d\n", maxDepth, MAX_AA_DEPTH);
+            maxDepth = MAX_AA_DEPTH;
+        }
+        aaDepth = Math.max(0, maxDepth);
+        aaThreshold = threshold;
+    }
+
+    /**
+     * Shades each hit with at most budget lights (so at most budget shadow rays) picked from a LightTree,
+     * instead of every light. Does nothing unless there are more lights than that, 0 turns it off.
+     * Returns whether the budget is in use.
+     */
+    public boolean setLightBudget (int budget) {
+        lightBudget = budget;
+        lightTree = budget > 0 && lights.size() > budget ? new LightTree(lights) : null;
+        return lightTree != null;
+    }
+
+    /**
+     * Turns packet tracing of primary rays on or off. Returns false, and leaves it off,
+     * if the JVM wasn't started with the jdk.incubator.vector module.
+     */
+    public boolean setPacketTracing (boolean on) {
+        packets = false;
+        if (on) {
+            try {
+                packets = PacketTracer.LANES > 1;
+            } catch (LinkageError e) {
+                System.err.println("Packet tracing needs --add-modules jdk.incubator.vector, tracing rays one at a time");
             }
         }
-        return img.mapPixels(pixelMap);
+        return packets;
+    }
+
+    /**
+     * Adds weight * the average color of a square onto out. The square's corner is at point gi, gj of
+     * the tile's sample grid and its sides are size grid steps long.
+     * If the corners don't agree the four quarters are done on their own, down to a single grid step.
+     */
+    private void adaptiveSquare (Scratch scratch, Tile tile, int gi, int gj, int size,
+            int width, int height, int depth, double weight, RGB out) {
+        int a = aaSample(scratch, tile, gi, gj, width, height, depth);
+        int b = aaSample(scratch, tile, gi + size, gj, width, height, depth);
+        int c = aaSample(scratch, tile, gi, gj + size, width, height, depth);
+        int d = aaSample(scratch, tile, gi + size, gj + size, width, height, depth);
+        double [] s = scratch.samples;
+        if (size > 1 && contrast(s, a, b, c, d) > aaThreshold) {
+            int half = size / 2;
+            double quarter = weight / 4;
+            adaptiveSquare(scratch, tile, gi, gj, half, width, height, depth, quarter, out);
+            adaptiveSquare(scratch, tile, gi + half, gj, half, width, height, depth, quarter, out);
+            adaptiveSquare(scratch, tile, gi, gj + half, half, width, height, depth, quarter, out);
+            adaptiveSquare(scratch, tile, gi + half, gj + half, half, width, height, depth, quarter, out);
+            return;
+        }
+        double w = weight / 4;
+        out.red += w * (s[a] + s[b] + s[c] + s[d]);
+        out.green += w * (s[a + 1] + s[b + 1] + s[c + 1] + s[d + 1]);
+        out.blue += w * (s[a + 2] + s[b + 2] + s[c + 2] + s[d + 2]);
     }
 
     /**
-     * Returns an ray cast from the eye point onto a pixel i, j in the image plane
+     * Returns where the color of sample grid point gi, gj is in scratch.samples,
+     * tracing it first if no pixel of this tile has needed it yet
      */
-    private Ray castRay (double i, double j, double width, double height) {
-        // Get the pixel value i,j on the image plane in world coordinates
-        double y = (i / (width - 1)) * (camera.left - camera.right) + camera.right;        
-        double x = (j / (height - 1)) * (camera.top - camera.bottom) + camera.bottom;
-        // Pixelpt = Eye + near * Wv (viewplaneNormal) + x * Uv + y * Vv
-        Vector W = camera.viewPlaneNormal.scale(camera.near); // near * Wv
-        Vector Uscaled = camera.Uv.scale(x);           // x * Uv
-        Vector Vscaled = camera.Vv.scale(y);           // y * Vv
-        Vector eyeVect = camera.eyePoint.toVector();
-        // A ray is a point and direction
-        Point pixelPoint = eyeVect.add(W).add(Uscaled).add(Vscaled).toPoint();
-        Vector direction = new Vector (camera.eyePoint, pixelPoint);
-        Ray newRay = new Ray (pixelPoint, direction);
-        return newRay;
+    private int aaSample (Scratch scratch, Tile tile, int gi, int gj, int width, int height, int depth) {
+        int k = gi * scratch.gridColumns + gj;
+        if (scratch.sampleStamps[k] != scratch.stamp) {
+            // Grid point 0, 0 is the top left corner of the tile's first pixel
+            double perPixel = 1 << aaDepth;
+            Ray r = camera.castRay(tile.iStart - 0.5 + gi / perPixel, tile.jStart - 0.5 + gj / perPixel,
+                    width, height, scratch.ray);
+            if (lightTree != null) {
+                // Seeded from where the sample is in the whole image, not the tile
+                long columns = (long) height * (1 << aaDepth) + 1;
+                samplerFor(scratch).seed(((long) tile.iStart << aaDepth) * columns + gi * columns
+                        + ((long) tile.jStart << aaDepth) + gj);
+            }
+            RGB color = scratch.sample;
+            colorPixel(scratch, r, depth, color);
+            scratch.samples[3 * k] = color.red;
+            scratch.samples[3 * k + 1] = color.green;
+            scratch.samples[3 * k + 2] = color.blue;
+            scratch.sampleStamps[k] = scratch.stamp;
+            scratch.stats.primaryRays++;
+        }
+        return 3 * k;
     }
 
     /**
-     * For each light
+     * The biggest difference between the four samples in any channel, after clamping to what the image can show
+     */
+    private static double contrast (double [] s, int a, int b, int c, int d) {
+        double most = 0;
+        for (int ch = 0; ch < 3; ch++) {
+            double va = clamp(s[a + ch]), vb = clamp(s[b + ch]), vc = clamp(s[c + ch]), vd = clamp(s[d + ch]);
+            double diff = Math.max(Math.max(va, vb), Math.max(vc, vd)) - Math.min(Math.min(va, vb), Math.min(vc, vd));
+            most = Math.max(most, diff);
+        }
+        return most;
+    }
+
+    private static double clamp (double v) {
+        return Math.min(1, Math.max(0, v));
+    }
+
+    /**
+     * Counters for the last frame rendered, along with how long loading and building the scene took
+     */
+    public RenderStats getStats () {
+        return stats;
+    }
+
+    public Camera getCamera () {
+        return camera;
+    }
+
+    /**
+     * Points the scene through a different camera, not while it's rendering
+     */
+    public void setCamera (Camera c) {
+        camera = c;
+    }
+
+    public Mesh getMesh () {
+        return mesh;
+    }
+
+    public List<Sphere> getSpheres () {
+        return spheres;
+    }
+
+    public List<Instance> getInstances () {
+        return instances;
+    }
+
+    public BVH getBVH () {
+        return bvh;
+    }
+
+    /**
+     * Shades a single ray into out, the same color renderTile gives the pixel the ray goes through.
+     * The ray is changed along the way. Mostly here so the benchmarks can get at the shading code.
+     */
+    RGB traceRay (Ray ray, int depth, RGB out) {
+        colorPixel(scratchFor(depth), ray, depth, out);
+        return out;
+    }
+
+    /**
+     * Everything a thread needs to shade a ray without allocating, reused from ray to ray
+     */
+    private static class Scratch {
+        Ray ray = new Ray();
+        Ray shadowRay = new Ray();
+        // The surface normal as it is used in dot products, and its unit length version
+        Vector normal = new Vector(0, 0, 0);
+        Vector normalUnit = new Vector(0, 0, 0);
+        Vector toOrig = new Vector(0, 0, 0);
+        Vector toLight = new Vector(0, 0, 0);
+        Vector reflect = new Vector(0, 0, 0);
+        Vector shadingNormal = new Vector(0, 0, 0);
+        Point surfacePt = new Point(0, 0, 0);
+        RGB pixel = new RGB(0, 0, 0);
+        RGB sample = new RGB(0, 0, 0);
+        // Counts for the tile being rendered
+        RenderStats stats = new RenderStats();
+        // Antialiasing samples for the tile being rendered, 3 doubles per grid point in row order.
+        // sampleStamps says which tile a sample was traced for, so the grid never needs clearing
+        double [] samples = new double [0];
+        int [] sampleStamps = new int [0];
+        int stamp;
+        int gridColumns;
+        // The local color at each level of a single path
+        RGB [] colors = new RGB [0];
+        // The paths of the tile being rendered
+        RayBatch batch = new RayBatch();
+        // The primitive last found blocking each light, tried before going through the BVH
+        // since the next shadow ray is likely blocked by the same thing. Only for scene occluderScene
+        int [] occluders = new int [0];
+        int occluderScene;
+        // Only made if there's a light budget
+        LightTree.Sampler sampler;
+        // Only made if packet tracing is on
+        private PacketTracer packetTracer;
+        private BVH packetBVH;
+
+        /**
+         * Clears the counts, along with any tests the rays picked up outside of a tile
+         */
+        RenderStats startTile () {
+            stats.collectTests(ray);
+            stats.collectTests(shadowRay);
+            stats.reset();
+            return stats;
+        }
+
+        /**
+         * Makes room for the sample grid of a tile with perPixel grid steps across each pixel
+         * and throws out the samples from the last tile
+         */
+        void startGrid (Tile tile, int perPixel) {
+            gridColumns = (tile.jEnd - tile.jStart) * perPixel + 1;
+            int points = ((tile.iEnd - tile.iStart) * perPixel + 1) * gridColumns;
+            if (sampleStamps.length < points) {
+                samples = new double [3 * points];
+                sampleStamps = new int [points];
+                stamp = 0;
+            }
+            stamp++;
+        }
+
+        PacketTracer packetTracer (BVH bvh) {
+            if (packetBVH != bvh) {
+                packetTracer = new PacketTracer(bvh);
+                packetBVH = bvh;
+            }
+            return packetTracer;
+        }
+
+        void ensureDepth (int depth) {
+            if (colors.length <= depth) {
+                colors = new RGB [depth + 1];
+                for (int i = 0; i <= depth; i++) {
+                    colors[i] = new RGB (0, 0, 0);
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue () {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * The thread's shadow occluder cache for this scene, emptied if it was last used for another one
+     */
+    private int [] occludersFor (Scratch scratch) {
+        if (scratch.occluderScene != id || scratch.occluders.length != lights.size()) {
+            scratch.occluderScene = id;
+            scratch.occluders = new int [lights.size()];
+            Arrays.fill(scratch.occluders, -1);
+        }
+        return scratch.occluders;
+    }
+
+    private LightTree.Sampler samplerFor (Scratch scratch) {
+        if (scratch.sampler == null || scratch.sampler.getBudget() != lightBudget) {
+            scratch.sampler = new LightTree.Sampler(lightBudget);
+        }
+        return scratch.sampler;
+    }
+
+    private static Scratch scratchFor (int depth) {
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureDepth(depth);
+        return scratch;
+    }
+
+    /**
+     * Follows one ray and its reflections down to depth bounces and puts the color in out.
+     * The local color of each level is added up from the deepest one back, like RayBatch.resolve.
+     * The ray is reused for the reflections, so it is changed too.
+     */
+    private void colorPixel (Scratch scratch, Ray ray, int depth, RGB out) {
+        RenderStats counts = scratch.stats;
+        int levels = 0;
+        while (levels <= depth) {
+            // Check for collision on the ray
+            if (!bvh.closestHit(ray)) {
+                // If we didn't get a collision nothing more gets added
+                counts.misses++;
+                break;
+            }
+            counts.hits++;
+            shadeHit(scratch, ray, scratch.colors[levels]);
+            if (levels++ < depth) {
+                bounce(scratch, ray);
+            }
+        }
+        out.set(0, 0, 0);
+        for (int k = levels - 1; k >= 0; k--) {
+            RGB color = scratch.colors[k];
+            out.set(color.red + out.red, color.green + out.green, color.blue + out.blue);
+        }
+    }
+
+    /**
+     * Works out the local color where ray hit, without the reflection. For each light
      *  get the vector from the intersection to the light
      *  get the vector from the intersection to the camera
      *  if the the light is non-orthogonal to the surface normal:
@@ -61,72 +525,106 @@ public class Scene {
      *      specular:
      *          R = (2 * surface_norm.dot(light_vect)) * surface_norm - light_vect
      *          mat_spec * light_brightness * (camera_vect.dot(R))^phong_const
+     * The surface point, normal and camera vector are left in scratch for bounce.
      */
-    private RGB colorPixel (Ray ray, int depth) {
-        RGB color = new RGB (0,0,0);
-        // Check for collision on the ray
-        Vector surfaceNormal = ray.rayTest(spheres, faces);
-        // If we got a collision calculate the color
-        if (surfaceNormal == null) {
-            return color;
-        }
-        Material material = ((Colorable)ray.getClosestObj()).getMaterial();
+    private void shadeHit (Scratch scratch, Ray ray, RGB color) {
+        color.set(0, 0, 0);
+        Material material = ray.getClosestMaterial();
+        Vector surfaceNormal = ray.closestNormal(scratch.normal);
+        Vector normalUnit = scratch.normalUnit.set(surfaceNormal);
+        Point surfacePt = ray.getClosestPoint(scratch.surfacePt);
         // Ambient
         // ambient * mat_ambient reflection
         if (ambient != null) {
-            color = ambient.getColor().pairwiseProduct(material.ambient);
+            color.setPairwiseProduct(ambient.getColor(), material.ambient);
         }
         // To camera ray is the going back on the horse we rode in on
-        Ray toOrig = ray.getReverse();
-        if (toOrig.getDirection().dotProduct(surfaceNormal) < 0) {
+        Vector toOrig = scratch.toOrig.set(-1 * ray.dx, -1 * ray.dy, -1 * ray.dz).makeUnitLength();
+        if (toOrig.dotProduct(surfaceNormal) < 0) {
             // If the dot product between the camera vector and the surface normal is negative
             // Then the surface normal is backwards
-        	surfaceNormal = surfaceNormal.getReverse();
+            surfaceNormal.reverseInPlace();
+            normalUnit.set(surfaceNormal).makeUnitLength();
         }
-      
-        for (Light l : lights) {
-            Vector toLightVect = new Vector (ray.getClosestPoint(), l.getPosition());
-            Ray toLight = new Ray (ray.getClosestPoint(), toLightVect);
+
+        int [] occluders = occludersFor(scratch);
+        if (lightTree == null) {
+            shadeLights(scratch, material, occluders, lights.size(), null, null, color);
+        } else {
+            // Only a budget of lights, see LightTree
+            Vector n = scratch.shadingNormal.set(normalUnit).makeUnitLength();
+            LightTree.Sampler sampler = samplerFor(scratch);
+            lightTree.choose(sampler, surfacePt, n);
+            shadeLights(scratch, material, occluders, sampler.count, sampler.lights, sampler.weights, color);
+        }
+        // Attenuate
+        color.pairwiseProductInPlace(material.attenuation);
+    }
+
+    /**
+     * Adds what count lights add to the hit shadeHit left in scratch, skipping the ones in shadow.
+     * Light k is which[k] and counts weights[k] times, or just light k once if they're null.
+     */
+    private void shadeLights (Scratch scratch, Material material, int [] occluders, int count,
+                              int [] which, double [] weights, RGB color) {
+        RenderStats counts = scratch.stats;
+        Ray toLight = scratch.shadowRay;
+        for (int k = 0; k < count; k++) {
+            int li = which == null ? k : which[k];
+            double weight = weights == null ? 1 : weights[k];
+            Light l = lights.get(li);
             /**
-             * Shadows? Fire a ray from the light to the pt of intersection. (i.e. closestPt of the ray)
+             * Shadows? Fire a ray from the pt of intersection (i.e. closestPt of the ray) to the light.
              * If there is some object that is in between then we know that the light is obstructed
-             */  
-            Ray lToSurface = new Ray (l.getPosition(), new Vector (l.getPosition(), ray.getClosestPoint()));
-            lToSurface.rayTest(spheres, faces);
-            if (!lToSurface.getClosestPoint().equals(ray.getClosestPoint())) {
-            	continue;
+             */
+            double lightDist = toLight.setBetween(scratch.surfacePt, l.getPosition());
+            counts.shadowRays++;
+            int last = occluders[li];
+            if (last >= 0) {
+                counts.occluderTries++;
+                if (bvh.blocks(toLight, last, lightDist)) {
+                    counts.occluderHits++;
+                    counts.shadowsBlocked++;
+                    continue;
+                }
             }
-            double lDotNorm = toLight.getDirection().dotProduct(surfaceNormal);
+            int occluder = bvh.findOccluder(toLight, lightDist);
+            occluders[li] = occluder;
+            if (occluder >= 0) {
+                counts.shadowsBlocked++;
+                continue;
+            }
+            Vector toLightVect = scratch.toLight.set(toLight.dx, toLight.dy, toLight.dz);
+            double lDotNorm = toLightVect.dotProduct(scratch.normal);
             // Only calculate the illumination if the cos (theta) between the light vector and the surface normal
             // Is non-negative and non-zero, as a negative cos would denote the light as behind the surface
             if (lDotNorm > 0) {
-            	// Calculate diffuse reflection
-                color = color.add(material.diffuse.pairwiseProduct(l.getColor()).scale(lDotNorm));
+                // Calculate diffuse reflection
+                color.addScaledProduct(material.diffuse, l.getColor(), lDotNorm * weight);
                 // Get the unit length vector for the reflection
-                Vector spR = surfaceNormal.scale(2 * lDotNorm);
-                spR = spR.subtract(toLight.getDirection());
+                Vector spR = scratch.reflect.set(scratch.normalUnit).scaleInPlace(2 * lDotNorm);
+                spR.subtractInPlace(toLightVect);
                 spR.makeUnitLength();
                 // Check the angle between the camera vector and the reflection vector
-                double origDotR = toOrig.getDirection().dotProduct(spR);
+                double origDotR = scratch.toOrig.dotProduct(spR);
                 // Only calculate phong reflection if the angle between the two is less than 90 degrees
                 if (origDotR > 0) {
-	                double cdPhong = Math.pow(origDotR, material.phong);
-	                color = color.add(material.specular.pairwiseProduct(l.getColor()).scale(cdPhong));
+                    double cdPhong = Math.pow(origDotR, material.phong);
+                    color.addScaledProduct(material.specular, l.getColor(), cdPhong * weight);
                 }
             }
         }
-        // Attenuate
-        color = color.pairwiseProduct(material.attenuation);
-        // Ray trace
-        RGB raytrace = null;
-        if (depth > 0) {
-            // (2 * np.dot(N, toC) * N) - toC            
-            Vector vectorBounce = (surfaceNormal.scale(2 * surfaceNormal.dotProduct(toOrig.getDirection()))).subtract(toOrig.getDirection());
-            vectorBounce.makeUnitLength();
-            Ray rayBounce = new Ray (ray.getClosestPoint(), vectorBounce);
-            raytrace = colorPixel(rayBounce, depth - 1);
-            color = color.add(raytrace);
-        }
-        return color;
-    }
-}
\ No newline at end of file
+    }
+
+    /**
+     * Points ray off of the surface it hit, in the mirror direction
+     * (2 * np.dot(N, toC) * N) - toC
+     */
+    private void bounce (Scratch scratch, Ray ray) {
+        Vector vectorBounce = scratch.reflect.set(scratch.normalUnit).scaleInPlace(2 * scratch.normal.dotProduct(scratch.toOrig));
+        vectorBounce.subtractInPlace(scratch.toOrig);
+        vectorBounce.makeUnitLength();
+        ray.set(scratch.surfacePt, vectorBounce);
+        scratch.stats.reflectionRays++;
+    }
+}
@@ -0,0 +1,490 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A driver file compiled down to a binary file that can be rendered straight away:
+ * the camera, lights, spheres, materials, every model's packed mesh and BVH, the placed
+ * instances and the scene's BVH. Opening one maps the file into memory and copies the
+ * arrays out in bulk, so there's no parsing, transforming or BVH building.
+ *
+ * The snapshot remembers the size, modified time and CRC32 of the driver, obj and mtl files
+ * it came from. If any of them has changed (a new time with the same contents is fine)
+ * the snapshot is compiled again from the driver file.
+ *
+ * Layout, everything big endian:
+ *  - magic, version
+ *  - driver file path, then the source files (path, size, modified time, crc)
+ *  - resolution, recursion depth, antialiasing
+ *  - camera, ambient light, lights
+ *  - materials, triangles refer to them by index here and get MaterialLibrary ids back when read
+ *  - spheres
+ *  - models (mesh arrays and BVH arrays)
+ *  - instances (model index, transforms and world box)
+ *  - the scene's own mesh and BVH
+ */
+public class SceneSnapshot {
+    private static final int MAGIC = 0x52545350; // "RTSP"
+    private static final int VERSION = 2;
+
+    private DriverModel driver;
+    private Scene scene;
+
+    private SceneSnapshot (DriverModel driver, Scene scene) {
+        this.driver = driver;
+        this.scene = scene;
+    }
+
+    /**
+     * The resolution, recursion depth and antialiasing the driver file asked for
+     */
+    public DriverModel getDriver () {
+        return driver;
+    }
+
+    public Scene getScene () {
+        return scene;
+    }
+
+    /**
+     * Checks whether filename starts like a snapshot
+     */
+    public static boolean isSnapshot (String filename) {
+        try (InputStream in = new FileInputStream(filename)) {
+            byte [] head = new byte [4];
+            return in.read(head) == 4 && ByteBuffer.wrap(head).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the driver file and everything it places, and writes it all out to snapshotFname
+     */
+    public static SceneSnapshot compile (String driverFname, String snapshotFname) throws IOException {
+        if (!new File(driverFname).isFile()) {
+            throw new IOException("Driver file '" + driverFname + "' does not exist");
+        }
+        long start = System.nanoTime();
+        DriverModel driver = new DriverModel(driverFname);
+        long driverTime = System.nanoTime() - start;
+        MeshCache cache = new MeshCache();
+        Scene scene = Raytracer.buildScene(driver, cache);
+        scene.getStats().loadNanos += driverTime;
+        // Stored absolute so the snapshot can be opened (and checked) from any directory
+        List<String> sources = new ArrayList<String>();
+        sources.add(absolutePath(driverFname));
+        for (String path : cache.getSourceFiles()) {
+            path = absolutePath(path);
+            if (!sources.contains(path)) {
+                sources.add(path);
+            }
+        }
+        // Write next to the snapshot and move it into place so a half written one is never opened
+        File part = new File(snapshotFname + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(part), 1 << 16))) {
+            write(out, sources.get(0), sources, driver, scene);
+        }
+        Files.move(part.toPath(), Paths.get(snapshotFname), StandardCopyOption.REPLACE_EXISTING);
+        return new SceneSnapshot(driver, scene);
+    }
+
+    /**
+     * Opens a snapshot, compiling it again first if the files it came from have changed
+     */
+    public static SceneSnapshot open (String snapshotFname) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer in = map(snapshotFname);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("'" + snapshotFname + "' isn't a scene snapshot");
+        }
+        if (in.getInt() != VERSION) {
+            throw new IOException("'" + snapshotFname + "' was written by a different version");
+        }
+        String driverFname = readString(in);
+        String changed = changedSource(in);
+        if (changed != null) {
+            System.out.printf("'%s' has changed, recompiling snapshot '%s'...\n", changed, snapshotFname);
+            return compile(driverFname, snapshotFname);
+        }
+        SceneSnapshot snapshot = read(in);
+        snapshot.scene.getStats().loadNanos += System.nanoTime() - start;
+        return snapshot;
+    }
+
+    private static String absolutePath (String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    private static ByteBuffer map (String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            // The mapping stays good after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Reads through the list of source files, returning the first one that has changed or null
+     */
+    private static String changedSource (ByteBuffer in) throws IOException {
+        String changed = null;
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String path = readString(in);
+            long size = in.getLong();
+            long modified = in.getLong();
+            int crc = in.getInt();
+            if (changed != null) {
+                continue;
+            }
+            File f = new File(path);
+            if (!f.isFile() || f.length() != size) {
+                changed = path;
+            } else if (f.lastModified() != modified && crc(f) != crc) {
+                changed = path;
+            }
+        }
+        return changed;
+    }
+
+    private static int crc (File f) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(f.toPath()));
+        return (int) crc.getValue();
+    }
+
+    private static void write (DataOutputStream out, String driverFname, List<String> sources,
+                               DriverModel driver, Scene scene) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, driverFname);
+        out.writeInt(sources.size());
+        for (String path : sources) {
+            File f = new File(path);
+            writeString(out, path);
+            out.writeLong(f.length());
+            out.writeLong(f.lastModified());
+            out.writeInt(f.isFile() ? crc(f) : 0);
+        }
+        out.writeInt(driver.resWidth);
+        out.writeInt(driver.resHeight);
+        out.writeInt(driver.recurDepth);
+        out.writeInt(driver.aaDepth);
+        out.writeDouble(driver.aaThreshold);
+
+        Camera c = scene.getCamera();
+        writePoint(out, c.eyePoint);
+        writePoint(out, c.lookatPoint);
+        out.writeDouble(c.upVector.x);
+        out.writeDouble(c.upVector.y);
+        out.writeDouble(c.upVector.z);
+        out.writeDouble(c.left);
+        out.writeDouble(c.bottom);
+        out.writeDouble(c.right);
+        out.writeDouble(c.top);
+        out.writeDouble(c.near);
+        writeRGB(out, driver.ambient == null ? null : driver.ambient.getColor());
+        out.writeInt(driver.lights.size());
+        for (Light l : driver.lights) {
+            writePoint(out, l.getPosition());
+            out.writeDouble(l.getW());
+            writeRGB(out, l.getColor());
+        }
+
+        BVH bvh = scene.getBVH();
+        // Give every model and material a number
+        IdentityHashMap<BVH, Integer> modelIds = new IdentityHashMap<BVH, Integer>();
+        List<BVH> models = new ArrayList<BVH>();
+        for (Instance inst : bvh.instances) {
+            if (!modelIds.containsKey(inst.bvh)) {
+                modelIds.put(inst.bvh, models.size());
+                models.add(inst.bvh);
+            }
+        }
+        // MaterialLibrary ids are only good for this run, so the file numbers materials itself
+        HashMap<Integer, Integer> materialIds = new HashMap<Integer, Integer>();
+        List<Material> materials = new ArrayList<Material>();
+        for (BVH model : models) {
+            addMaterials(model.mesh, materialIds, materials);
+        }
+        addMaterials(bvh.mesh, materialIds, materials);
+        out.writeInt(materials.size());
+        for (Material m : materials) {
+            writeString(out, m.name);
+            writeRGB(out, m.ambient);
+            writeRGB(out, m.diffuse);
+            writeRGB(out, m.specular);
+            writeRGB(out, m.attenuation);
+            out.writeDouble(m.phong);
+        }
+
+        out.writeInt(bvh.spheres.size());
+        for (Sphere s : bvh.spheres) {
+            writePoint(out, s.getCenter());
+            out.writeDouble(s.getRadius());
+            Material m = s.getMaterial();
+            writeRGB(out, m.ambient);
+            writeRGB(out, m.diffuse);
+            writeRGB(out, m.specular);
+            writeRGB(out, m.attenuation);
+        }
+
+        out.writeInt(models.size());
+        for (BVH model : models) {
+            writeMesh(out, model.mesh, materialIds);
+            writeTree(out, model);
+        }
+        out.writeInt(bvh.instances.size());
+        for (Instance inst : bvh.instances) {
+            out.writeInt(modelIds.get(inst.bvh));
+            writeDoubles(out, inst.toWorld, inst.toWorld.length);
+            writeDoubles(out, inst.toObject, inst.toObject.length);
+            writeDoubles(out, inst.worldBounds, inst.worldBounds.length);
+        }
+        writeMesh(out, bvh.mesh, materialIds);
+        writeTree(out, bvh);
+    }
+
+    private static SceneSnapshot read (ByteBuffer in) {
+        DriverModel driver = new DriverModel();
+        driver.resWidth = in.getInt();
+        driver.resHeight = in.getInt();
+        driver.recurDepth = in.getInt();
+        driver.aaDepth = in.getInt();
+        driver.aaThreshold = in.getDouble();
+
+        Point eye = readPoint(in);
+        Point look = readPoint(in);
+        Vector up = new Vector(in.getDouble(), in.getDouble(), in.getDouble());
+        double [] bnds = {in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble()};
+        driver.cameraModel = new Camera(eye, look, up, bnds, in.getDouble());
+        RGB ambient = readRGB(in);
+        driver.ambient = ambient == null ? null : new Light(ambient, null, 0);
+        int lightCount = in.getInt();
+        for (int i = 0; i < lightCount; i++) {
+            Point position = readPoint(in);
+            double w = in.getDouble();
+            driver.lights.add(new Light(readRGB(in), position, w));
+        }
+
+        // Holds the materials until the meshes that use them have taken them
+        MaterialLibrary.Uses loading = new MaterialLibrary.Uses();
+        int [] materials = new int [in.getInt()];
+        for (int i = 0; i < materials.length; i++) {
+            String name = readString(in);
+            RGB ka = readRGB(in), kd = readRGB(in), ks = readRGB(in), kr = readRGB(in);
+            materials[i] = MaterialLibrary.intern(new Material(ka, kd, ks, kr, in.getDouble(), name), loading);
+        }
+
+        int sphereCount = in.getInt();
+        for (int i = 0; i < sphereCount; i++) {
+            Point center = readPoint(in);
+            double radius = in.getDouble();
+            driver.spheres.add(new Sphere(center, radius, readRGB(in), readRGB(in), readRGB(in), readRGB(in)));
+        }
+
+        List<Sphere> noSpheres = new ArrayList<Sphere>();
+        List<Instance> noInstances = new ArrayList<Instance>();
+        BVH [] models = new BVH [in.getInt()];
+        for (int i = 0; i < models.length; i++) {
+            models[i] = readTree(in, readMesh(in, materials), noSpheres, noInstances);
+        }
+        List<Instance> instances = new ArrayList<Instance>();
+        int instanceCount = in.getInt();
+        for (int i = 0; i < instanceCount; i++) {
+            BVH model = models[in.getInt()];
+            instances.add(new Instance(model, readDoubles(in), readDoubles(in), readDoubles(in)));
+        }
+        BVH bvh = readTree(in, readMesh(in, materials), driver.spheres, instances);
+        Scene scene = new Scene(driver.cameraModel, bvh, driver.lights, driver.ambient);
+        scene.setAntialiasing(driver.aaDepth, driver.aaThreshold);
+        Reference.reachabilityFence(loading);
+        return new SceneSnapshot(driver, scene);
+    }
+
+    private static void addMaterials (Mesh mesh, HashMap<Integer, Integer> ids, List<Material> materials) {
+        for (int t = 0; t < mesh.triangleCount; t++) {
+            int id = mesh.materialIds[t];
+            if (id >= 0 && !ids.containsKey(id)) {
+                ids.put(id, materials.size());
+                materials.add(MaterialLibrary.get(id));
+            }
+        }
+    }
+
+    private static void writeMesh (DataOutputStream out, Mesh mesh, HashMap<Integer, Integer> materialIds)
+            throws IOException {
+        out.writeInt(mesh.vertexCount);
+        out.writeInt(mesh.vertexNormalCount);
+        out.writeInt(mesh.triangleCount);
+        writeDoubles(out, mesh.positions, 3 * mesh.vertexCount);
+        writeInts(out, mesh.indices, 3 * mesh.triangleCount);
+        writeFloats(out, mesh.normals, 3 * mesh.triangleCount);
+        int [] fileIds = new int [mesh.triangleCount];
+        for (int t = 0; t < mesh.triangleCount; t++) {
+            int id = mesh.materialIds[t];
+            fileIds[t] = id < 0 ? -1 : materialIds.get(id);
+        }
+        writeInts(out, fileIds, mesh.triangleCount);
+        writeFloats(out, mesh.vertexNormals, 3 * mesh.vertexNormalCount);
+        if (mesh.normalIndices == null) {
+            out.writeInt(-1);
+        } else {
+            writeInts(out, mesh.normalIndices, 3 * mesh.triangleCount);
+        }
+    }
+
+    private static Mesh readMesh (ByteBuffer in, int [] materialIds) {
+        Mesh mesh = new Mesh();
+        mesh.vertexCount = in.getInt();
+        mesh.vertexNormalCount = in.getInt();
+        mesh.triangleCount = in.getInt();
+        mesh.positions = readDoubles(in);
+        mesh.indices = readInts(in);
+        mesh.normals = readFloats(in);
+        mesh.materialIds = readInts(in);
+        mesh.vertexNormals = readFloats(in);
+        mesh.normalIndices = readInts(in);
+        for (int t = 0; t < mesh.triangleCount; t++) {
+            int id = mesh.materialIds[t];
+            mesh.materialIds[t] = id < 0 ? -1 : materialIds[id];
+            mesh.useMaterial(mesh.materialIds[t]);
+        }
+        return mesh;
+    }
+
+    private static void writeTree (DataOutputStream out, BVH bvh) throws IOException {
+        int nodes = bvh.getNodeCount();
+        out.writeInt(nodes);
+        writeDoubles(out, bvh.bounds, 6 * nodes);
+        writeInts(out, bvh.nodeInfo, 2 * nodes);
+        writeInts(out, bvh.primIndex, bvh.primIndex.length);
+    }
+
+    private static BVH readTree (ByteBuffer in, Mesh mesh, List<Sphere> spheres, List<Instance> instances) {
+        int nodes = in.getInt();
+        return new BVH(mesh, spheres, instances, readDoubles(in), readInts(in), readInts(in), nodes);
+    }
+
+    private static void writeDoubles (DataOutputStream out, double [] a, int n) throws IOException {
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(a[i]);
+        }
+    }
+
+    private static void writeFloats (DataOutputStream out, float [] a, int n) throws IOException {
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeFloat(a[i]);
+        }
+    }
+
+    private static void writeInts (DataOutputStream out, int [] a, int n) throws IOException {
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeInt(a[i]);
+        }
+    }
+
+    /*
+     * The arrays are copied out of the mapped file in one go each,
+     * a length of -1 is a null array
+     */
+
+    private static double [] readDoubles (ByteBuffer in) {
+        int n = in.getInt();
+        double [] a = new double [n];
+        in.asDoubleBuffer().get(a);
+        in.position(in.position() + 8 * n);
+        return a;
+    }
+
+    private static float [] readFloats (ByteBuffer in) {
+        int n = in.getInt();
+        float [] a = new float [n];
+        in.asFloatBuffer().get(a);
+        in.position(in.position() + 4 * n);
+        return a;
+    }
+
+    private static int [] readInts (ByteBuffer in) {
+        int n = in.getInt();
+        if (n < 0) {
+            return null;
+        }
+        int [] a = new int [n];
+        in.asIntBuffer().get(a);
+        in.position(in.position() + 4 * n);
+        return a;
+    }
+
+    private static void writePoint (DataOutputStream out, Point p) throws IOException {
+        out.writeBoolean(p != null);
+        if (p != null) {
+            out.writeDouble(p.x);
+            out.writeDouble(p.y);
+            out.writeDouble(p.z);
+        }
+    }
+
+    private static Point readPoint (ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return new Point(in.getDouble(), in.getDouble(), in.getDouble());
+    }
+
+    private static void writeRGB (DataOutputStream out, RGB c) throws IOException {
+        out.writeBoolean(c != null);
+        if (c != null) {
+            out.writeDouble(c.red);
+            out.writeDouble(c.green);
+            out.writeDouble(c.blue);
+        }
+    }
+
+    private static RGB readRGB (ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return new RGB(in.getDouble(), in.getDouble(), in.getDouble());
+    }
+
+    private static void writeString (DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte [] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString (ByteBuffer in) {
+        int n = in.getInt();
+        if (n < 0) {
+            return null;
+        }
+        byte [] bytes = new byte [n];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -25,10 +25,14 @@ public class Sphere implements Colorable {
      * Get the surface normal for a given point the sphere
      */
     public Vector getNormal (Point surfacePt) {
-        Point c = getCenter();
-        Vector surfaceNormal = new Vector (c, surfacePt);
-        surfaceNormal.direction = surfaceNormal.normalized;
-        return surfaceNormal;
+        return getNormal(surfacePt.x, surfacePt.y, surfacePt.z, new Vector(0, 0, 0));
+    }
+
+    /**
+     * Writes the surface normal for the point (x, y, z) on the sphere into out
+     */
+    public Vector getNormal (double x, double y, double z, Vector out) {
+        return out.set(x - center.x, y - center.y, z - center.z).makeUnitLength();
     }
 
     public Point getCenter () {
@@ -0,0 +1,45 @@
+/**
+ * A rectangular block of pixels in the image.
+ * Covers pixels i in [iStart, iEnd) and j in [jStart, jEnd) where i and j are the
+ * same indices Scene.generateImage loops over.
+ */
+public class Tile {
+    public final int index;
+    public final int iStart, iEnd;
+    public final int jStart, jEnd;
+
+    public Tile (int index, int iStart, int iEnd, int jStart, int jEnd) {
+        this.index = index;
+        this.iStart = iStart;
+        this.iEnd = iEnd;
+        this.jStart = jStart;
+        this.jEnd = jEnd;
+    }
+
+    public int pixelCount () {
+        return (iEnd - iStart) * (jEnd - jStart);
+    }
+
+    /**
+     * Cuts a width x height image into tiles of at most size x size pixels, in row order
+     */
+    public static Tile [] split (int width, int height, int size) {
+        int across = (width + size - 1) / size;
+        int down = (height + size - 1) / size;
+        Tile [] tiles = new Tile [across * down];
+        int index = 0;
+        for (int ti = 0; ti < across; ti++) {
+            for (int tj = 0; tj < down; tj++) {
+                int i = ti * size;
+                int j = tj * size;
+                tiles[index] = new Tile(index, i, Math.min(width, i + size), j, Math.min(height, j + size));
+                index++;
+            }
+        }
+        return tiles;
+    }
+
+    public String toString () {
+        return String.format("Tile %d: i [%d, %d) j [%d, %d)", index, iStart, iEnd, jStart, jEnd);
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Renders a scene by cutting the image into tiles and handing them out to a fork/join pool.
+ * Idle threads steal tiles from busy ones, so uneven tiles (e.g. lots of reflections in one
+ * corner) still keep every core working.
+ *
+ * Every tile writes only its own pixels in the shared image, so no locking is needed,
+ * and joining the pool makes all of the writes visible to the caller.
+ */
+public class TileRenderer {
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    /**
+     * Told about each tile once all of its pixels are in the image, from the thread that rendered it
+     */
+    public interface TileListener {
+        void finish (Tile tile);
+    }
+
+    private ForkJoinPool pool;
+    private int tileSize;
+
+    public TileRenderer (int threads) {
+        this(threads, DEFAULT_TILE_SIZE);
+    }
+
+    public TileRenderer (int threads, int tileSize) {
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Renders every tile of the scene into img, which must come from Scene.newImage(width, height)
+     */
+    public void render (Scene scene, Image img, int width, int height, int depth) {
+        render(scene, img, width, height, depth, 1, 0);
+    }
+
+    /**
+     * Renders one pass of a progressive render, see Scene.renderTile for what step and skip mean
+     */
+    public void render (Scene scene, Image img, int width, int height, int depth, int step, int skip) {
+        Tile [] tiles = Tile.split(width, height, tileSize);
+        pool.invoke(new TileTask(scene, tiles, 0, tiles.length, img, width, height, depth, step, skip, null));
+    }
+
+    /**
+     * Renders the tiles the checkpoint doesn't have yet, saving it every intervalMillis along the way.
+     * The checkpoint has to have been made with this renderer's tile size.
+     */
+    public void render (Scene scene, Image img, int width, int height, int depth, Checkpoint checkpoint,
+                        long intervalMillis) {
+        List<Tile> todo = new ArrayList<Tile>();
+        for (Tile tile : checkpoint.getTiles()) {
+            if (!checkpoint.isFinished(tile)) {
+                todo.add(tile);
+            }
+        }
+        if (todo.isEmpty()) {
+            return;
+        }
+        Tile [] tiles = todo.toArray(new Tile [todo.size()]);
+        ForkJoinTask<Void> task = pool.submit(
+                new TileTask(scene, tiles, 0, tiles.length, img, width, height, depth, 1, 0, checkpoint));
+        while (true) {
+            try {
+                task.get(intervalMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                checkpoint.save(img);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                checkpoint.save(img);
+                return;
+            } catch (ExecutionException e) {
+                // Keep whatever did get finished before giving up
+                checkpoint.save(img);
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Starts rendering every tile of the scene into img without waiting for it. Tiles of frames
+     * started together share the threads, so a frame with few tiles doesn't leave threads idle.
+     */
+    public ForkJoinTask<Void> start (Scene scene, Image img, int width, int height, int depth) {
+        return start(scene, img, width, height, depth, 1, 0, null);
+    }
+
+    /**
+     * Starts one pass of a progressive render without waiting for it, telling listener about each tile
+     * as it finishes if there is one
+     */
+    public ForkJoinTask<Void> start (Scene scene, Image img, int width, int height, int depth, int step, int skip,
+                                     TileListener listener) {
+        Tile [] tiles = Tile.split(width, height, tileSize);
+        return pool.submit(new TileTask(scene, tiles, 0, tiles.length, img, width, height, depth, step, skip, listener));
+    }
+
+    public void shutdown () {
+        pool.shutdown();
+    }
+
+    public int getThreads () {
+        return pool.getParallelism();
+    }
+
+    public int getTileSize () {
+        return tileSize;
+    }
+
+    /**
+     * Splits the tile range in half until a single tile is left, then renders it
+     */
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private Scene scene;
+        private Tile [] tiles;
+        private int start, end;
+        private Image img;
+        private int width, height, depth;
+        private int step, skip;
+        // Told about each tile as it finishes, if there is one
+        private TileListener listener;
+
+        TileTask (Scene scene, Tile [] tiles, int start, int end, Image img, int width, int height, int depth,
+                int step, int skip, TileListener listener) {
+            this.scene = scene;
+            this.tiles = tiles;
+            this.start = start;
+            this.end = end;
+            this.img = img;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.step = step;
+            this.skip = skip;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute () {
+            if (end - start == 1) {
+                scene.renderTile(tiles[start], img, width, height, depth, step, skip);
+                if (listener != null) {
+                    listener.finish(tiles[start]);
+                }
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new TileTask(scene, tiles, start, mid, img, width, height, depth, step, skip, listener),
+                      new TileTask(scene, tiles, mid, end, img, width, height, depth, step, skip, listener));
+        }
+    }
+}
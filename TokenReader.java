@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Reads whitespace separated tokens out of a text file one line at a time, straight from the bytes.
+ * This is what the obj and mtl loaders use instead of Scanner and String.split, numbers are parsed
+ * without making a String for them, so loading a big model makes almost no garbage.
+ *
+ * Usage looks like:
+ *  while (reader.nextLine()) {
+ *      if (reader.nextToken() && reader.tokenEquals("v")) {
+ *          double x = reader.nextDouble();
+ *          ...
+ *      }
+ *  }
+ */
+public class TokenReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Powers of ten that are exactly representable as doubles
+    private static final double [] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private InputStream in;
+    private byte [] buffer = new byte [BUFFER_SIZE];
+    private int pos, limit;
+    private boolean endOfFile;
+    // The current token, copied out of the buffer so it can't be split across two reads
+    private byte [] token = new byte [64];
+    private int tokenLength;
+    // Set once the current line has run out of tokens
+    private boolean endOfLine = true;
+    private int lineNumber;
+
+    public TokenReader (String filename) throws IOException {
+        this.in = Files.newInputStream(Paths.get(filename));
+    }
+
+    /**
+     * Moves on to the next line, skipping whatever is left of the current one.
+     * Returns false when there are no more lines.
+     */
+    public boolean nextLine () throws IOException {
+        // Skip the rest of the current line
+        while (!endOfLine) {
+            int c = read();
+            if (c < 0 || c == '\n') {
+                endOfLine = true;
+            }
+        }
+        if (peek() < 0) {
+            return false;
+        }
+        endOfLine = false;
+        lineNumber++;
+        return true;
+    }
+
+    /**
+     * Reads the next token on the current line. Returns false if the line has no more tokens.
+     */
+    public boolean nextToken () throws IOException {
+        tokenLength = 0;
+        if (endOfLine) {
+            return false;
+        }
+        int c = read();
+        // Skip leading whitespace, but not past the end of the line
+        while (c == ' ' || c == '\t' || c == '\r') {
+            c = read();
+        }
+        if (c < 0 || c == '\n') {
+            endOfLine = true;
+            return false;
+        }
+        while (c >= 0 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, 2 * token.length);
+            }
+            token[tokenLength++] = (byte) c;
+            c = read();
+        }
+        if (c < 0 || c == '\n') {
+            endOfLine = true;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the current token is s
+     */
+    public boolean tokenEquals (String s) {
+        if (s.length() != tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (token[i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean tokenEqualsIgnoreCase (String s) {
+        return tokenLength == s.length() && tokenString().equalsIgnoreCase(s);
+    }
+
+    /**
+     * Returns true if the current token starts with c, e.g. '#' for comments
+     */
+    public boolean tokenStartsWith (char c) {
+        return tokenLength > 0 && token[0] == c;
+    }
+
+    public String tokenString () {
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns everything left on the current line, trimmed
+     */
+    public String restOfLine () throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!endOfLine) {
+            int c = read();
+            if (c < 0 || c == '\n') {
+                endOfLine = true;
+            } else if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Reads the next token as a double
+     */
+    public double nextDouble () throws IOException {
+        if (!nextToken()) {
+            throw new NumberFormatException("Expected a number on line " + lineNumber);
+        }
+        return tokenDouble();
+    }
+
+    /**
+     * Reads the next token as an int
+     */
+    public int nextInt () throws IOException {
+        if (!nextToken()) {
+            throw new NumberFormatException("Expected a number on line " + lineNumber);
+        }
+        return parseInt(0, tokenLength);
+    }
+
+    /**
+     * Parses the current token as a double.
+     * Plain decimals with up to 15 significant digits and small exponents are worked out directly:
+     * the digits and the power of ten are both exact doubles, so one multiply or divide gives the
+     * correctly rounded answer, same as Double.parseDouble. Anything else goes to Double.parseDouble.
+     */
+    public double tokenDouble () {
+        int i = 0;
+        boolean negative = false;
+        if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+            negative = token[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; i < tokenLength; i++) {
+            byte c = token[i];
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    // Leading zeros don't count as significant digits
+                    if (sawPoint) {
+                        exponent--;
+                    }
+                    continue;
+                }
+                if (digits >= 15) {
+                    return slowDouble();
+                }
+                mantissa = 10 * mantissa + (c - '0');
+                digits++;
+                if (sawPoint) {
+                    exponent--;
+                }
+            } else if (c == '.' && !sawPoint) {
+                sawPoint = true;
+            } else if ((c == 'e' || c == 'E') && sawDigit) {
+                int e;
+                try {
+                    e = parseInt(i + 1, tokenLength);
+                } catch (NumberFormatException ex) {
+                    return slowDouble();
+                }
+                exponent += e;
+                i = tokenLength;
+            } else {
+                return slowDouble();
+            }
+        }
+        if (!sawDigit) {
+            return slowDouble();
+        }
+        double value = mantissa;
+        if (mantissa != 0) {
+            if (exponent < -22 || exponent > 22) {
+                return slowDouble();
+            }
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+        }
+        return negative ? -value : value;
+    }
+
+    private double slowDouble () {
+        return Double.parseDouble(tokenString());
+    }
+
+    /**
+     * Parses token[start ... end - 1] as an int
+     */
+    private int parseInt (int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (token[i] == '-' || token[i] == '+')) {
+            negative = token[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Bad integer '" + tokenString() + "' on line " + lineNumber);
+        }
+        long value = 0;
+        // Integer.MIN_VALUE has one more on the negative side
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        for (; i < end; i++) {
+            byte c = token[i];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Bad integer '" + tokenString() + "' on line " + lineNumber);
+            }
+            value = 10 * value + (c - '0');
+            if (value > limit) {
+                throw new NumberFormatException("Bad integer '" + tokenString() + "' on line " + lineNumber);
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Splits the current token on '/' and parses part k (0 indexed) as an int,
+     * e.g. part 2 of "4/7/1" is 1. Returns 0 when the part is missing or empty like in "4//1".
+     */
+    public int tokenIndexPart (int k) {
+        int start = 0;
+        for (int part = 0; part < k; part++) {
+            while (start < tokenLength && token[start] != '/') {
+                start++;
+            }
+            if (start == tokenLength) {
+                return 0;
+            }
+            start++;
+        }
+        int end = start;
+        while (end < tokenLength && token[end] != '/') {
+            end++;
+        }
+        if (end == start) {
+            return 0;
+        }
+        return parseInt(start, end);
+    }
+
+    public int getLineNumber () {
+        return lineNumber;
+    }
+
+    private int peek () throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos] & 0xFF;
+    }
+
+    private int read () throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    private boolean fill () throws IOException {
+        if (endOfFile) {
+            return false;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            endOfFile = true;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public void close () throws IOException {
+        in.close();
+    }
+}
@@ -53,23 +53,24 @@ public class Translator {
   private static SimpleMatrix vectorsToMatrix(Vector u, Vector v, Vector w) {
     SimpleMatrix rotation = new SimpleMatrix(4, 4);
     for (int i = 0; i < 3; i++) {
-      rotation.set(0, i, u.normalized[i]);
-      rotation.set(1, i, v.normalized[i]);
-      rotation.set(2, i, w.normalized[i]);
+      rotation.set(0, i, u.getNormalized()[i]);
+      rotation.set(1, i, v.getNormalized()[i]);
+      rotation.set(2, i, w.getNormalized()[i]);
     }
     rotation.set(3,3,1);
     return rotation;
   }
   private static Vector getMFromVector(Vector rotation_axis) {
     double [] mArray = new double [3];
+    double [] normalized = rotation_axis.getNormalized();
     // Copy the rotation_axis to avoid side effects
-    System.arraycopy(rotation_axis.normalized, 0, mArray, 0, rotation_axis.normalized.length);
-    double min = Math.abs(rotation_axis.normalized[0]);
+    System.arraycopy(normalized, 0, mArray, 0, normalized.length);
+    double min = Math.abs(normalized[0]);
     int min_index = 0;
     // Get the minimum value
-    for (int i = 0; i < rotation_axis.normalized.length; i++) {
-      if (Math.abs(rotation_axis.normalized[i]) < min) {
-        min = rotation_axis.normalized[i];
+    for (int i = 0; i < normalized.length; i++) {
+      if (Math.abs(normalized[i]) < min) {
+        min = normalized[i];
         min_index = i;
       }
     }
@@ -94,6 +95,15 @@ public class Translator {
 
   public static SimpleMatrix performTranslations
   (SimpleMatrix obj_matrix, Vector rotation_axis, double theta, double scalar, Point translate) 
+  {
+    return transformMatrix(rotation_axis, theta, scalar, translate).mult(obj_matrix);
+  }
+
+  /**
+   * The 4 x 4 matrix performTranslations applies to the vertices, rotate then scale then translate
+   */
+  public static SimpleMatrix transformMatrix
+  (Vector rotation_axis, double theta, double scalar, Point translate)
   {
     SimpleMatrix Tm = translate3D(translate);
     SimpleMatrix Sm = scale3D(scalar);
@@ -104,6 +114,6 @@ public class Translator {
     SimpleMatrix Mm = Tm.mult(Sm).mult(Rm);
     // In this case we want to rotate, scale, and then translate so we apply it like this
     // Sm * Tm * Rm * Vertices = (Sm*Tm*Rm) * Vertices
-    return Mm.mult(obj_matrix);
+    return Mm;
   }
 }
\ No newline at end of file
@@ -1,51 +1,23 @@
-import java.util.Arrays;
-
+/**
+ * A 3d vector.
+ * The methods named like add, subtract and scale hand back a new vector and leave this one alone.
+ * The ...InPlace methods and set change this vector and return it, so the shading code can keep
+ * a few scratch vectors around instead of making garbage for every ray.
+ * The magnitude and unit length version are only worked out when someone asks for them.
+ */
 public class Vector {
   // The vectors direction
-  public double [] direction;
-  // magnitude of the non-unit length version of this vector
-  public double magnitude;
-  // The vector as unit length
-  public double [] normalized;
-  // The origin of the vector
-  public Point origin;
+  public double x, y, z;
+  // magnitude of this vector, negative when it needs to be recalculated
+  private double magnitude = -1;
+  // The vector as unit length, only valid when unitValid is set
+  private double [] normalized;
+  private boolean unitValid;
 
   public Vector (double x, double y, double z) {
-    double [] temp = {x, y, z};
-    this.direction = temp;
-    normalize();
+    set(x, y, z);
   }
 
-  /**
-   * Gets the magnitude and creates the normalized vector
-   */
-  public void normalize() {
-    double tempSum = 0;
-    // Get the magnitude and unit length vector
-    for (int i = 0; i < direction.length; i++) {
-      tempSum += Math.pow(direction[i], 2);
-    }
-    this.magnitude = Math.sqrt(tempSum);
-    // If the magnitude is 0, i.e the vector is all zeros. Set the normalized vector to zeros
-    if (this.magnitude == 0) {
-      double [] zeroVect = {0, 0, 0};
-      this.normalized = zeroVect;
-    } else {
-      double x = direction[0];
-      double y = direction[1];
-      double z = direction[2];
-      double [] temp2 = {x/magnitude, y/magnitude, z/magnitude};
-      this.normalized = temp2;
-    }
-  }
-  
-  /**
-   * Makes this vector unit length
-   */
-  public void makeUnitLength () {
-	  this.direction = this.normalized;
-  }
- 
   /**
    * Creates a vector pointing from the origin to the given point
    */
@@ -61,6 +33,72 @@ public class Vector {
     this (head.x - tail.x, head.y - tail.y, head.z - tail.z);
   }
 
+  public Vector set (double x, double y, double z) {
+    this.x = x;
+    this.y = y;
+    this.z = z;
+    this.magnitude = -1;
+    this.unitValid = false;
+    return this;
+  }
+
+  public Vector set (Vector other) {
+    return set(other.x, other.y, other.z);
+  }
+
+  /**
+   * Sets this vector to point from tail to head
+   */
+  public Vector setBetween (Point tail, Point head) {
+    return set(head.x - tail.x, head.y - tail.y, head.z - tail.z);
+  }
+
+  /**
+   * Gets the magnitude, working it out if the vector changed since the last time
+   */
+  public double getMagnitude () {
+    if (magnitude < 0) {
+      magnitude = Math.sqrt(x * x + y * y + z * z);
+    }
+    return magnitude;
+  }
+
+  /**
+   * Returns the unit length version of this vector as {x, y, z}.
+   * If the magnitude is 0, i.e the vector is all zeros, the unit vector is zeros too.
+   * The array is reused, so copy it if you need to hang on to it after changing the vector.
+   */
+  public double [] getNormalized () {
+    if (!unitValid) {
+      if (normalized == null) {
+        normalized = new double [3];
+      }
+      double m = getMagnitude();
+      if (m == 0) {
+        normalized[0] = 0;
+        normalized[1] = 0;
+        normalized[2] = 0;
+      } else {
+        normalized[0] = x / m;
+        normalized[1] = y / m;
+        normalized[2] = z / m;
+      }
+      unitValid = true;
+    }
+    return normalized;
+  }
+
+  /**
+   * Makes this vector unit length
+   */
+  public Vector makeUnitLength () {
+    double m = getMagnitude();
+    if (m == 0) {
+      return set(0, 0, 0);
+    }
+    return set(x / m, y / m, z / m);
+  }
+
   /**
    * The cross product of two vectors
    * a = <x, y, z>
@@ -70,9 +108,9 @@ public class Vector {
    * cz = axby − aybx
    */
   public Vector crossProduct(Vector other) {
-    double cx = this.direction[1] * other.direction[2] - this.direction[2] * other.direction[1];
-    double cy = this.direction[2] * other.direction[0] - this.direction[0] * other.direction[2];
-    double cz = this.direction[0] * other.direction[1] - this.direction[1] * other.direction[0];
+    double cx = this.y * other.z - this.z * other.y;
+    double cy = this.z * other.x - this.x * other.z;
+    double cz = this.x * other.y - this.y * other.x;
     Vector v = new Vector(cx, cy, cz);
     return v;
   }
@@ -84,62 +122,69 @@ public class Vector {
     // Dot product for
     // <x1, y1, z1> <x2, y2, z2> is
     // x1 * x2 + y1 * y2 + z1 * z2
-    return this.direction[0] * other.direction[0] + 
-           this.direction[1] * other.direction[1] + 
-           this.direction[2] * other.direction[2];
+    return this.x * other.x +
+           this.y * other.y +
+           this.z * other.z;
   }
 
   /**
    * Returns the result of adding the two vectors
    */
   public Vector add(Vector other) {
-    double x = this.direction[0] + other.direction[0];
-    double y = this.direction[1] + other.direction[1];
-    double z = this.direction[2] + other.direction[2];
-    return new Vector (x,y,z);
+    return new Vector (this.x + other.x, this.y + other.y, this.z + other.z);
+  }
+
+  /**
+   * Adds other onto this vector
+   */
+  public Vector addInPlace(Vector other) {
+    return set(this.x + other.x, this.y + other.y, this.z + other.z);
   }
 
   /**
    * Returns the result of subtracting the two vectors
    */
   public Vector subtract(Vector other) {
-    double x = this.direction[0] - other.direction[0];
-    double y = this.direction[1] - other.direction[1];
-    double z = this.direction[2] - other.direction[2];
-    return new Vector (x,y,z);
+    return new Vector (this.x - other.x, this.y - other.y, this.z - other.z);
+  }
+
+  /**
+   * Subtracts other from this vector
+   */
+  public Vector subtractInPlace(Vector other) {
+    return set(this.x - other.x, this.y - other.y, this.z - other.z);
   }
 
   /**
-   * Returns a result of a scaled vector
+   * Returns a result of a scaled vector, the unit length version of this vector times s
    */
   public Vector scale(double s) {
-    double x = this.normalized[0] * s;
-    double y = this.normalized[1] * s;
-    double z = this.normalized[2] * s;
-    return new Vector(x,y,z);
+    double [] unit = getNormalized();
+    return new Vector(unit[0] * s, unit[1] * s, unit[2] * s);
+  }
+
+  /**
+   * Multiplies this vector by s
+   */
+  public Vector scaleInPlace(double s) {
+    return set(this.x * s, this.y * s, this.z * s);
   }
 
   /**
    * Returns a point representation of the head of this vector
    */
   public Point toPoint() {
-    double x = this.direction[0];
-    double y = this.direction[1];
-    double z = this.direction[2];
-    return new Point(x,y,z);
+    return new Point(x, y, z);
   }
 
   public String toString() {
-    String str = "Direction: " + Arrays.toString(direction) + "\n";
-    str += "Unit Length: " + Arrays.toString(normalized) + "\n";
-    str += "Magnitude: " + magnitude;
+    double [] unit = getNormalized();
+    String str = "Direction: [" + x + ", " + y + ", " + z + "]\n";
+    str += "Unit Length: [" + unit[0] + ", " + unit[1] + ", " + unit[2] + "]\n";
+    str += "Magnitude: " + getMagnitude();
     return str;
   }
 
-  public double getMagnitude () {
-    return magnitude;
-  }
-
   public boolean equals(Object other) {
     if (this == other) {
       return true;
@@ -151,16 +196,22 @@ public class Vector {
       return false;
     }
     Vector otherVect = (Vector) other;
-    // if they have the same magnitude and direction the unit length vectors will be the same
-    return Arrays.equals(this.direction, otherVect.direction) 
-           && (this.magnitude == otherVect.magnitude);
+    // if they have the same components they have the same magnitude and direction
+    return this.x == otherVect.x && this.y == otherVect.y && this.z == otherVect.z;
   }
 
+  /**
+   * Returns the unit length version of this vector pointing the other way
+   */
   public Vector getReverse () {
-    double x,y,z;
-    x = -1 * normalized[0];
-    y = -1 * normalized[1];
-    z = -1 * normalized[2];
-    return new Vector (x,y,z);
+    double [] unit = getNormalized();
+    return new Vector (-1 * unit[0], -1 * unit[1], -1 * unit[2]);
+  }
+
+  /**
+   * Flips this vector around
+   */
+  public Vector reverseInPlace () {
+    return set(-1 * x, -1 * y, -1 * z);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,7 @@
+#! /bin/bash
+# Compiles and runs a benchmark from the bench directory, defaults to TriangleBenchmark
+# Anything after the benchmark name is passed along to it
+BENCH=${1:-TriangleBenchmark}
+mkdir -p bench/classes
+javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp "./EJML.jar:." -d bench/classes *.java bench/*.java
+java --add-modules jdk.incubator.vector -cp "./EJML.jar:bench/classes" $BENCH "${@:2}"
@@ -0,0 +1,119 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A very small benchmark harness.
+ * Each benchmark is a body that does some fixed amount of work (opsPerCall operations) and returns
+ * a number so the JIT can't throw the work away. The body is called for a few warmup rounds and then
+ * for some measured rounds, each round keeps calling it until roundMillis have gone by.
+ *
+ * Along with the time per operation it reports the bytes allocated per operation, taken from the
+ * per thread allocation counter of the JVM when it has one (HotSpot does).
+ */
+public class Bench {
+    public interface Body {
+        double run () throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    private int warmupRounds = 3;
+    private int rounds = 5;
+    private long roundMillis = 500;
+    private String filter;
+    private List<String> results = new ArrayList<String>();
+    // Everything the bodies return is added in here and printed at the end
+    private double sink;
+
+    public Bench (String filter) {
+        this.filter = filter;
+    }
+
+    public Bench rounds (int warmupRounds, int rounds, long roundMillis) {
+        this.warmupRounds = warmupRounds;
+        this.rounds = rounds;
+        this.roundMillis = roundMillis;
+        return this;
+    }
+
+    /**
+     * Runs a benchmark if its name contains the filter, and prints the result
+     */
+    public void run (String name, long opsPerCall, Body body) {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < warmupRounds; i++) {
+                round(body, opsPerCall);
+            }
+            double best = Double.MAX_VALUE, total = 0, bytes = 0;
+            for (int i = 0; i < rounds; i++) {
+                double [] r = round(body, opsPerCall);
+                best = Math.min(best, r[0]);
+                total += r[0];
+                bytes += r[1];
+            }
+            String line = String.format("%-40s %14s ns/op (best %s) %12s B/op", name,
+                    format(total / rounds), format(best), bytes < 0 ? "n/a" : format(bytes / rounds));
+            System.out.println(line);
+            results.add(line);
+        } catch (Exception e) {
+            System.out.printf("%-40s failed: %s\n", name, e);
+        }
+    }
+
+    /**
+     * Returns {ns per op, bytes per op} for one round, bytes is negative if we can't count them
+     */
+    private double [] round (Body body, long opsPerCall) throws Exception {
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = allocatedBytes(thread);
+        long start = System.nanoTime();
+        long end = start + roundMillis * 1000000L;
+        long calls = 0;
+        long now;
+        do {
+            sink += body.run();
+            calls++;
+            now = System.nanoTime();
+        } while (now < end);
+        long bytesAfter = allocatedBytes(thread);
+        double ops = (double) calls * opsPerCall;
+        double bytes = bytesBefore < 0 ? -1 : (bytesAfter - bytesBefore) / ops;
+        return new double [] {(now - start) / ops, bytes};
+    }
+
+    public void printSummary () {
+        System.out.printf("%d benchmarks run (checksum %.3f)\n", results.size(), sink);
+    }
+
+    private static String format (double v) {
+        if (v >= 100) {
+            return String.format("%,.0f", v);
+        }
+        return String.format("%.2f", v);
+    }
+
+    private static long allocatedBytes (long thread) {
+        if (THREADS == null) {
+            return -1;
+        }
+        return THREADS.getThreadAllocatedBytes(thread);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter () {
+        try {
+            com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        } catch (Exception e) {
+            // Not HotSpot, we just won't report allocations
+        }
+        return null;
+    }
+}
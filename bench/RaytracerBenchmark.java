@@ -0,0 +1,328 @@
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Benchmarks for the main pieces of the ray tracer:
+ *  - intersectTriangle and intersectSphere on their own
+ *  - rayTest against the scene, both the linear scan and the BVH
+ *  - primary visibility one ray at a time and in SIMD packets
+ *  - shading a camera ray (colorPixel) at a few recursion depths
+ *  - parsing obj files, placing them with Translator and writing images out
+ *
+ * Each one runs on the shipped driver scenes and on a synthetic terrain mesh that is a lot bigger.
+ * Run it from the project directory, optionally with part of a benchmark name to only run those:
+ *  ./bench.sh RaytracerBenchmark colorPixel
+ * Add --quick to cut the rounds down while trying things out.
+ */
+public class RaytracerBenchmark {
+    // The terrain is GRID x GRID quads, so 2 * GRID^2 triangles
+    private static final int GRID = 256;
+    // Camera rays used per call for the ray tests and shading
+    private static final int SAMPLE_RAYS = 4096;
+
+    public static void main (String args[]) throws Exception {
+        String filter = null;
+        boolean quick = false;
+        for (String a : args) {
+            if (a.equals("--quick")) {
+                quick = true;
+            } else {
+                filter = a;
+            }
+        }
+        Bench bench = new Bench(filter);
+        if (quick) {
+            bench.rounds(1, 2, 200);
+        }
+
+        DriverModel driver00 = new DriverModel("./drivers_models/driver00.txt");
+        DriverModel driver01 = new DriverModel("./drivers_models/driver01.txt");
+        // Flattened so the triangle benchmarks have a world space mesh to work on
+        Scene scene00 = Raytracer.buildScene(driver00, true);
+        Scene scene01 = Raytracer.buildScene(driver01, true);
+        Scene instanced00 = Raytracer.buildScene(driver00, false);
+        File terrainFile = File.createTempFile("terrain", ".obj");
+        terrainFile.deleteOnExit();
+        writeTerrain(terrainFile, GRID);
+        Scene terrain = terrainScene(new ObjectModel(terrainFile.getPath()));
+        System.out.printf("driver00: %s\ndriver01: %d spheres\nterrain: %s\n\n",
+                scene00.getMesh(), scene01.getSpheres().size(), terrain.getMesh());
+
+        intersectionBenchmarks(bench, scene00, scene01);
+        rayTestBenchmarks(bench, "driver00", scene00, driver00, true);
+        rayTestBenchmarks(bench, "driver00/instanced", instanced00, driver00, false);
+        rayTestBenchmarks(bench, "driver01", scene01, driver01, true);
+        rayTestBenchmarks(bench, "terrain", terrain, null, false);
+        packetBenchmarks(bench, "driver00", scene00, driver00.resWidth, driver00.resHeight);
+        packetBenchmarks(bench, "driver00/instanced", instanced00, driver00.resWidth, driver00.resHeight);
+        packetBenchmarks(bench, "terrain", terrain, 1024, 1024);
+        for (int depth : new int [] {0, 1, 3, 5}) {
+            shadingBenchmark(bench, "driver00", scene00, driver00, depth);
+            shadingBenchmark(bench, "driver01", scene01, driver01, depth);
+            shadingBenchmark(bench, "terrain", terrain, null, depth);
+        }
+        loadingBenchmarks(bench, terrainFile);
+        imageBenchmarks(bench, scene00, driver00);
+        bench.printSummary();
+    }
+
+    /**
+     * One op is one ray against one primitive
+     */
+    private static void intersectionBenchmarks (Bench bench, Scene scene00, Scene scene01) {
+        final Mesh mesh = scene00.getMesh();
+        final Ray [] rays00 = cameraRays(scene00, 512, 512);
+        final int triangles = mesh.getTriangleCount();
+        bench.run("intersectTriangle/driver00", (long) rays00.length * triangles, () -> {
+            double sum = 0;
+            for (Ray r : rays00) {
+                for (int t = 0; t < triangles; t++) {
+                    sum += r.intersectTriangle(mesh, t);
+                }
+            }
+            return sum;
+        });
+        final List<Sphere> spheres = scene01.getSpheres();
+        final Ray [] rays01 = cameraRays(scene01, 256, 256);
+        bench.run("intersectSphere/driver01", (long) rays01.length * spheres.size(), () -> {
+            double sum = 0;
+            for (Ray r : rays01) {
+                for (int s = 0; s < spheres.size(); s++) {
+                    sum += r.intersectSphere(spheres.get(s));
+                }
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * One op is one ray against the whole scene
+     */
+    private static void rayTestBenchmarks (Bench bench, String name, Scene scene, DriverModel driver, boolean linear) {
+        final Ray [] rays = driver == null ? cameraRays(scene, 1024, 1024)
+                                           : cameraRays(scene, driver.resWidth, driver.resHeight);
+        final Mesh mesh = scene.getMesh();
+        final List<Sphere> spheres = scene.getSpheres();
+        final BVH bvh = scene.getBVH();
+        // The linear scan is only worth timing on the small scenes
+        if (linear) {
+            bench.run("rayTest/linear/" + name, rays.length, () -> {
+                double hits = 0;
+                for (Ray r : rays) {
+                    if (reset(r).rayTest(spheres, mesh) != null) {
+                        hits++;
+                    }
+                }
+                return hits;
+            });
+        }
+        bench.run("rayTest/bvh/" + name, rays.length, () -> {
+            double hits = 0;
+            for (Ray r : rays) {
+                if (bvh.closestHit(reset(r))) {
+                    hits += r.getClosestDist();
+                }
+            }
+            return hits;
+        });
+        bench.run("isOccluded/bvh/" + name, rays.length, () -> {
+            double hits = 0;
+            for (Ray r : rays) {
+                if (bvh.isOccluded(r, Double.MAX_VALUE)) {
+                    hits++;
+                }
+            }
+            return hits;
+        });
+    }
+
+    /**
+     * Primary visibility for every pixel, one ray at a time against packets of PacketTracer.LANES rays.
+     * The rays are in tile order like renderTile queues them. One op is one ray.
+     */
+    private static void packetBenchmarks (Bench bench, String name, Scene scene, int width, int height) {
+        Tile [] tiles = Tile.split(width, height, TileRenderer.DEFAULT_TILE_SIZE);
+        final Ray [] rays = new Ray [width * height];
+        final int [] queue = new int [rays.length];
+        int n = 0;
+        for (Tile tile : tiles) {
+            for (int i = tile.iStart; i < tile.iEnd; i++) {
+                for (int j = tile.jStart; j < tile.jEnd; j++) {
+                    rays[n] = scene.getCamera().castRay(i, j, width, height, new Ray());
+                    queue[n] = n;
+                    n++;
+                }
+            }
+        }
+        final BVH bvh = scene.getBVH();
+        bench.run("primary/scalar/" + name, rays.length, () -> {
+            double hits = 0;
+            for (Ray r : rays) {
+                if (bvh.closestHit(reset(r))) {
+                    hits += r.getClosestDist();
+                }
+            }
+            return hits;
+        });
+        final PacketTracer tracer = new PacketTracer(bvh);
+        bench.run("primary/packet" + PacketTracer.LANES + "/" + name, rays.length, () -> {
+            for (Ray r : rays) {
+                reset(r);
+            }
+            for (int q = 0; q < rays.length; q += PacketTracer.LANES) {
+                tracer.closestHits(rays, queue, q, Math.min(PacketTracer.LANES, rays.length - q));
+            }
+            double hits = 0;
+            for (Ray r : rays) {
+                if (r.hasHit()) {
+                    hits += r.getClosestDist();
+                }
+            }
+            return hits;
+        });
+    }
+
+    /**
+     * One op is one camera ray shaded all the way down to depth
+     */
+    private static void shadingBenchmark (Bench bench, String name, Scene scene, DriverModel driver, final int depth) {
+        final int width = driver == null ? 1024 : driver.resWidth;
+        final int height = driver == null ? 1024 : driver.resHeight;
+        final Camera camera = scene.getCamera();
+        final int [] pixels = samplePixels(width, height);
+        final Ray ray = new Ray();
+        final RGB color = new RGB(0, 0, 0);
+        bench.run("colorPixel/depth" + depth + "/" + name, pixels.length / 2, () -> {
+            double sum = 0;
+            for (int k = 0; k < pixels.length; k += 2) {
+                camera.castRay(pixels[k], pixels[k + 1], width, height, ray);
+                scene.traceRay(ray, depth, color);
+                sum += color.red + color.green + color.blue;
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * One op is one whole file, or one whole mesh placed in the world
+     */
+    private static void loadingBenchmarks (Bench bench, final File terrainFile) {
+        final String checker = "./drivers_models/checker.obj";
+        bench.run("parse/checker.obj", 1, () -> new ObjectModel(checker).getMesh().getTriangleCount());
+        bench.run("parse/terrain.obj", 1, () -> new ObjectModel(terrainFile.getPath()).getMesh().getTriangleCount());
+        final SimpleMatrix checkerVerts = new ObjectModel(checker).getVerticesMatrix();
+        final SimpleMatrix terrainVerts = new ObjectModel(terrainFile.getPath()).getVerticesMatrix();
+        final Vector axis = new Vector(1, 0, 0);
+        final Point move = new Point(0, 0, 0);
+        bench.run("performTranslations/checker", 1,
+                () -> Translator.performTranslations(checkerVerts, axis, 90, 1, move).get(0, 0));
+        bench.run("performTranslations/terrain", 1,
+                () -> Translator.performTranslations(terrainVerts, axis, 90, 1, move).get(0, 0));
+    }
+
+    /**
+     * One op is writing a whole 512 x 512 image
+     */
+    private static void imageBenchmarks (Bench bench, Scene scene, DriverModel driver) throws Exception {
+        final Image img = scene.generateImage(driver.resWidth, driver.resHeight, driver.recurDepth);
+        final File out = File.createTempFile("bench", ".ppm");
+        out.deleteOnExit();
+        bench.run("writeToFile/p6", 1, () -> {
+            img.writeToFile(out.getPath(), true);
+            return out.length();
+        });
+        bench.run("writeToFile/p3", 1, () -> {
+            img.writeToFile(out.getPath(), false);
+            return out.length();
+        });
+    }
+
+    /**
+     * Rays through a spread out sample of the pixels, the same ones every run
+     */
+    private static Ray [] cameraRays (Scene scene, int width, int height) {
+        int [] pixels = samplePixels(width, height);
+        Ray [] rays = new Ray [pixels.length / 2];
+        for (int k = 0; k < rays.length; k++) {
+            rays[k] = scene.getCamera().castRay(pixels[2 * k], pixels[2 * k + 1], width, height, new Ray());
+        }
+        return rays;
+    }
+
+    /**
+     * Clears the closest hit a ray found last time around, so every test starts from scratch
+     */
+    private static Ray reset (Ray r) {
+        return r.set(r.ox, r.oy, r.oz, r.dx, r.dy, r.dz);
+    }
+
+    /**
+     * Picks SAMPLE_RAYS pixels, packed as i, j pairs
+     */
+    private static int [] samplePixels (int width, int height) {
+        Random rand = new Random(410);
+        int [] pixels = new int [2 * SAMPLE_RAYS];
+        for (int k = 0; k < SAMPLE_RAYS; k++) {
+            pixels[2 * k] = rand.nextInt(width);
+            pixels[2 * k + 1] = rand.nextInt(height);
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes out a bumpy grid of size x size quads as an obj file
+     */
+    private static void writeTerrain (File file, int size) throws Exception {
+        Random rand = new Random(410);
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("# Synthetic terrain for benchmarking");
+            for (int x = 0; x <= size; x++) {
+                for (int z = 0; z <= size; z++) {
+                    double y = 4 * Math.sin(x * 0.1) * Math.cos(z * 0.07) + rand.nextDouble();
+                    out.printf("v %.6f %.6f %.6f\n", x - size / 2.0, y, z - size / 2.0);
+                }
+            }
+            for (int x = 0; x < size; x++) {
+                for (int z = 0; z < size; z++) {
+                    int a = x * (size + 1) + z + 1;
+                    int b = a + 1;
+                    int c = a + size + 1;
+                    int d = c + 1;
+                    out.printf("f %d %d %d %d\n", a, b, d, c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the terrain under a camera looking down at it, with a couple of lights and mirror spheres
+     */
+    private static Scene terrainScene (ObjectModel obj) {
+        Mesh mesh = new Mesh();
+        mesh.append(obj.getMesh());
+        RGB grey = new RGB(0.5, 0.5, 0.5);
+        Material ground = new Material(new RGB(0.2, 0.2, 0.2), grey, grey, new RGB(0.3, 0.3, 0.3), 16, "ground");
+        int id = MaterialLibrary.intern(ground, mesh.getMaterialUses());
+        for (int t = 0; t < mesh.getTriangleCount(); t++) {
+            mesh.materialIds[t] = id;
+        }
+        mesh.trim();
+        List<Sphere> spheres = new ArrayList<Sphere>();
+        Random rand = new Random(410);
+        for (int i = 0; i < 16; i++) {
+            Point c = new Point(rand.nextDouble() * GRID - GRID / 2, 12, rand.nextDouble() * GRID - GRID / 2);
+            spheres.add(new Sphere(c, 6, new RGB(0.1, 0.1, 0.1), grey, grey, new RGB(0.9, 0.9, 0.9)));
+        }
+        List<Light> lights = new ArrayList<Light>();
+        lights.add(new Light(new RGB(0.5, 0.5, 0.5), new Point(100, 200, 100), 1));
+        lights.add(new Light(new RGB(0.5, 0.5, 0.5), new Point(-100, 200, -100), 1));
+        Light ambient = new Light(new RGB(0.1, 0.1, 0.1), null, 0);
+        Camera camera = new Camera(new Point(0, 150, 150), new Point(0, 0, 0), new Vector(0, 1, 0),
+                new double [] {-1, -1, 1, 1}, 1);
+        return new Scene(camera, mesh, spheres, lights, ambient);
+    }
+}
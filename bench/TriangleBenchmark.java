@@ -0,0 +1,130 @@
+import java.util.Random;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Microbenchmark comparing the closed form triangle intersection in Ray against
+ * the old approach of building and inverting the EJML matrix Mx = Y for every test.
+ *
+ * Run it from the project directory with bench.sh
+ */
+public class TriangleBenchmark {
+    private static final int TRIANGLES = 1024;
+    private static final int RAYS = 1024;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main (String args[]) {
+        Random rand = new Random(410);
+        Mesh mesh = new Mesh();
+        for (int i = 0; i < TRIANGLES; i++) {
+            Point a = randomPoint(rand);
+            int av = mesh.addVertex(a.x, a.y, a.z);
+            int bv = mesh.addVertex(a.x + rand.nextDouble(), a.y + rand.nextDouble(), a.z);
+            int cv = mesh.addVertex(a.x - rand.nextDouble(), a.y + rand.nextDouble(), a.z + rand.nextDouble());
+            mesh.addTriangle(av, bv, cv, -1);
+        }
+        Ray [] rays = new Ray [RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            Point o = new Point(rand.nextDouble(), rand.nextDouble(), -10);
+            Vector d = new Vector(randomPoint(rand).x * 0.1, randomPoint(rand).y * 0.1, 1);
+            rays[i] = new Ray(o, d);
+        }
+        // Make sure both kernels agree before timing anything
+        int mismatches = 0, hits = 0;
+        for (Ray r : rays) {
+            for (int f = 0; f < TRIANGLES; f++) {
+                boolean closedForm = r.intersectTriangle(mesh, f) > 0;
+                boolean ejml = intersectEJML(r, mesh, f) > 0;
+                if (closedForm) {
+                    hits++;
+                }
+                if (closedForm != ejml) {
+                    mismatches++;
+                }
+            }
+        }
+        System.out.printf("%d tests, %d hits, %d disagreements\n", RAYS * TRIANGLES, hits, mismatches);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runClosedForm(rays, mesh);
+            runEJML(rays, mesh);
+        }
+        long closedTime = 0, ejmlTime = 0;
+        double sink = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += runClosedForm(rays, mesh);
+            closedTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            sink += runEJML(rays, mesh);
+            ejmlTime += System.nanoTime() - start;
+        }
+        double tests = (double) ROUNDS * RAYS * TRIANGLES;
+        System.out.printf("Closed form: %.2f ns/test\n", closedTime / tests);
+        System.out.printf("EJML solve:  %.2f ns/test\n", ejmlTime / tests);
+        System.out.printf("Speedup:     %.1fx (checksum %.1f)\n", (double) ejmlTime / closedTime, sink);
+    }
+
+    private static Point randomPoint (Random rand) {
+        return new Point(rand.nextDouble() * 2 - 1, rand.nextDouble() * 2 - 1, rand.nextDouble() * 2 - 1);
+    }
+
+    private static double runClosedForm (Ray [] rays, Mesh mesh) {
+        double sum = 0;
+        for (Ray r : rays) {
+            for (int f = 0; f < TRIANGLES; f++) {
+                sum += r.intersectTriangle(mesh, f);
+            }
+        }
+        return sum;
+    }
+
+    private static double runEJML (Ray [] rays, Mesh mesh) {
+        double sum = 0;
+        for (Ray r : rays) {
+            for (int f = 0; f < TRIANGLES; f++) {
+                sum += intersectEJML(r, mesh, f);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The previous intersection from Ray, kept here as the reference
+     * | ax - bx  ax - cx  dx |   | B |   | ax - lx |
+     * | ay - by  ay - cy  dy | * | Y | = | ay - ly |
+     * | az - bz  az - cz  dz |   | t |   | az - lz |
+     */
+    private static double intersectEJML (Ray ray, Mesh mesh, int f) {
+        Point A = mesh.getVertex(mesh.indices[3 * f]);
+        Point B = mesh.getVertex(mesh.indices[3 * f + 1]);
+        Point C = mesh.getVertex(mesh.indices[3 * f + 2]);
+        Vector AC = new Vector (A, C);
+        Vector AB = new Vector (A, B);
+        if (AC.crossProduct(AB).dotProduct(ray.getDirection()) != 0) {
+            double [] d = ray.getDirection().getNormalized();
+            Point l = ray.getOrigin();
+            SimpleMatrix Mm = new SimpleMatrix(3,3);
+            Mm.set(0,0, (A.x - B.x));
+            Mm.set(0,1, (A.x - C.x));
+            Mm.set(0,2, d[0]);
+            Mm.set(1,0, (A.y - B.y));
+            Mm.set(1,1, (A.y - C.y));
+            Mm.set(1,2, d[1]);
+            Mm.set(2,0, (A.z - B.z));
+            Mm.set(2,1, (A.z - C.z));
+            Mm.set(2,2, d[2]);
+            SimpleMatrix Ym = new SimpleMatrix(3,1);
+            Ym.set(0,0, A.x - l.x);
+            Ym.set(1,0, A.y - l.y);
+            Ym.set(2,0, A.z - l.z);
+            SimpleMatrix solution = Mm.invert().mult(Ym);
+            double beta = solution.get(0,0);
+            double gamma = solution.get(1,0);
+            double t = solution.get(2,0);
+            if (beta >= 0 && gamma >= 0 && t > 0.0001 && beta + gamma <= 1) {
+                return t;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,4 +1,4 @@
 #! /bin/bash
 # Runs the project with cmd line arg $1
 ls *.class | xargs rm
-javac -cp "./EJML.jar:." Raytracer.java
\ No newline at end of file
+javac --add-modules jdk.incubator.vector -cp "./EJML.jar:." Raytracer.java
\ No newline at end of file
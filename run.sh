@@ -2,5 +2,5 @@
 # Runs the project with cmd line arg $1
 ls *.class | xargs rm
 # javac -cp "./org/ejml/*:." Raytracer.java
-javac -cp "./EJML.jar:." Raytracer.java
-java Raytracer $1 $2
+javac --add-modules jdk.incubator.vector -cp "./EJML.jar:." Raytracer.java
+java --add-modules jdk.incubator.vector Raytracer "$@"
@@ -1,5 +1,3 @@
 #!/bin/bash
-for i in $(ls -1 ./drivers_models/driver*.txt); do
-    ppmname=$(echo $i | cut -d "." -f 1 | cut -b 7-)
-    ./run.sh ./drivers_models/$i test$ppmname.ppm
-done;
\ No newline at end of file
+# Renders every driver file in one run, the images go in the current dir named after each driver file
+./run.sh --batch './drivers_models/driver*.txt' "$@"
@@ -0,0 +1,47 @@
+#! /bin/bash
+# Renders the driver files in drivers_models/tests that used to break the raytracer and checks they come out right
+# The classes go in test/classes so the ones next to the source are left alone
+mkdir -p test/classes
+javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp "./EJML.jar:." -d test/classes *.java || exit 1
+RUN="java --add-modules jdk.incubator.vector -cp ./EJML.jar:test/classes Raytracer"
+failed=0
+
+# Renders driver $1 with the options after it to test/out.ppm as P3, failing if it crashes
+render () {
+    local driver=$1
+    shift
+    if ! $RUN "$@" --p3 "drivers_models/tests/$driver.txt" test/out.ppm > test/log.txt 2>&1; then
+        echo "FAIL $driver $*: render crashed, see test/log.txt"
+        tail -n 20 test/log.txt
+        failed=1
+        return 1
+    fi
+}
+
+# Number of pixel values in test/out.ppm that aren't 0
+lit () {
+    tail -n +3 test/out.ppm | tr -s ' \n' '\n' | grep -v -c -x -e '0' -e ''
+}
+
+for options in "" "--packets" "--flatten" "--threads 1"; do
+    # Nothing but a camera and lights, every pixel misses
+    if render empty $options; then
+        if [ "$(lit)" != "0" ]; then
+            echo "FAIL empty $options: the image isn't black"
+            failed=1
+        else
+            echo "ok   empty $options"
+        fi
+    fi
+    # A model whose obj file doesn't exist next to a sphere, the sphere still shows up
+    if render missing_model $options; then
+        if [ "$(lit)" == "0" ]; then
+            echo "FAIL missing_model $options: the sphere is missing"
+            failed=1
+        else
+            echo "ok   missing_model $options"
+        fi
+    fi
+done
+rm -f test/out.ppm
+exit $failed